@@ -8,6 +8,7 @@ package codes.angeljsb.capsulator;
 import java.awt.Desktop;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -20,6 +21,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.URI;
+import java.nio.charset.Charset;
 
 /**
  * Clase base que representa un archivo. Se diferencia de java.io.File por el
@@ -30,6 +32,8 @@ import java.net.URI;
  */
 public class BaseFile extends File {
 
+    private boolean compressionEnabled = false;
+
     /**
      * Crea un objeto que apunta a la ruta pasada, así sea absoluta o relativa
      *
@@ -136,7 +140,55 @@ public class BaseFile extends File {
     }
 
     /**
-     * Obtiene un InputStream para leer el archivo
+     * Determina si los streams de este archivo comprimen y descomprimen los
+     * datos de forma transparente según el sufijo del archivo
+     *
+     * @return Si la compresión transparente está activa
+     */
+    public boolean isCompressionEnabled() {
+        return this.compressionEnabled;
+    }
+
+    /**
+     * Activa o desactiva la compresión transparente. Con ella activa, un
+     * archivo {@code .gz} o {@code .deflate} se descomprime al leerlo con
+     * getInputStream() o getReader() y se comprime al escribirlo con
+     * getOutputStream() o getWriter(), sin archivos temporales. Está
+     * desactivada por defecto
+     *
+     * @param compressionEnabled Si se debe activar la compresión transparente
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * Devuelve el formato de compresión que se aplica a los streams de este
+     * archivo
+     *
+     * @return El formato según el sufijo del archivo, o NONE si la compresión
+     * transparente no está activa
+     */
+    public Compression getCompression() {
+        if (!this.compressionEnabled) {
+            return Compression.NONE;
+        }
+        return Compression.forSuffix(this.getSuffix());
+    }
+
+    /**
+     * Determina si los streams de este archivo se comprimen, por lo que sus
+     * bytes en disco no corresponden con los que se leen y escriben
+     *
+     * @return Si se aplica alguna compresión a este archivo
+     */
+    public boolean isCompressed() {
+        return this.getCompression() != Compression.NONE;
+    }
+
+    /**
+     * Obtiene un InputStream para leer el archivo. Si la compresión
+     * transparente está activa, el stream devuelve los datos descomprimidos
      *
      * @return un Input stream para leer este archivo o null si el archivo no se
      * puede leer
@@ -146,21 +198,60 @@ public class BaseFile extends File {
         if (!this.canRead()) {
             return null;
         }
-        return new FileInputStream(this);
+        FileInputStream in = new FileInputStream(this);
+        try {
+            return this.getCompression().wrap(in);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            close(in);
+            return null;
+        }
     }
 
     /**
-     * Obtiene un OutputStream para escribir el archivo
+     * Obtiene un OutputStream para escribir el archivo. Si la compresión
+     * transparente está activa, lo que se escribe se comprime
      *
      * @return un output stream para escribir este archivo o null si el archivo
      * no se puede escribir
      * @throws FileNotFoundException Si el archivo no existe
      */
     public OutputStream getOutputStream() throws FileNotFoundException {
+        return this.getOutputStream(false);
+    }
+
+    /**
+     * Obtiene un OutputStream para escribir el archivo, opcionalmente
+     * añadiendo al final del contenido actual. Si la compresión transparente
+     * está activa, lo que se escribe se comprime
+     *
+     * @param append Si se escribe al final del archivo en lugar de
+     * reemplazarlo
+     * @return un output stream para escribir este archivo o null si el archivo
+     * no se puede escribir
+     * @throws FileNotFoundException Si el archivo no existe
+     */
+    public OutputStream getOutputStream(boolean append)
+            throws FileNotFoundException {
         if (!this.canWrite()) {
             return null;
         }
-        return new FileOutputStream(this);
+        FileOutputStream out = new FileOutputStream(this, append);
+        try {
+            return this.getCompression().wrap(out);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            close(out);
+            return null;
+        }
+    }
+
+    private static void close(Closeable stream) {
+        try {
+            stream.close();
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
     }
 
     /**
@@ -178,6 +269,43 @@ public class BaseFile extends File {
         return new BufferedReader(new InputStreamReader(is));
     }
 
+    /**
+     * Obtiene el reader para leer este archivo con una codificación concreta
+     *
+     * @param charset La codificación del texto en el archivo
+     * @return Un reader para leer el archivo o null si el archivo no se puede
+     * leer
+     * @throws FileNotFoundException Si el archivo no existe
+     */
+    public BufferedReader getReader(Charset charset)
+            throws FileNotFoundException {
+        InputStream is = this.getInputStream();
+        if (is == null) {
+            return null;
+        }
+        return new BufferedReader(new InputStreamReader(is, charset));
+    }
+
+    /**
+     * Obtiene el reader para leer este archivo con una codificación y un
+     * tamaño de buffer concretos
+     *
+     * @param charset La codificación del texto en el archivo
+     * @param bufferSize El tamaño del buffer del reader en caracteres
+     * @return Un reader para leer el archivo o null si el archivo no se puede
+     * leer
+     * @throws FileNotFoundException Si el archivo no existe
+     */
+    public BufferedReader getReader(Charset charset, int bufferSize)
+            throws FileNotFoundException {
+        InputStream is = this.getInputStream();
+        if (is == null) {
+            return null;
+        }
+        return new BufferedReader(new InputStreamReader(is, charset),
+                bufferSize);
+    }
+
     /**
      * Obtiene el writer para escribir este archivo
      *
@@ -193,6 +321,24 @@ public class BaseFile extends File {
         return new BufferedWriter(new OutputStreamWriter(os));
     }
 
+    /**
+     * Obtiene el writer para escribir este archivo con una codificación
+     * concreta
+     *
+     * @param charset La codificación con la que se escribirá el texto
+     * @return Un writer para escribir el archivo o null si el archivo no se
+     * puede escribir
+     * @throws FileNotFoundException Si el archivo no existe
+     */
+    public BufferedWriter getWriter(Charset charset)
+            throws FileNotFoundException {
+        OutputStream os = this.getOutputStream();
+        if (os == null) {
+            return null;
+        }
+        return new BufferedWriter(new OutputStreamWriter(os, charset));
+    }
+
     @Override
     public boolean mkdirs() {
         System.err.println("Operación no disponible para este tipo de "
@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Formatos de compresión que BaseFile puede aplicar de forma transparente al
+ * leer y escribir un archivo. El formato se elige según el sufijo del archivo
+ *
+ * @author Angel
+ */
+public enum Compression {
+
+    /**
+     * Sin compresión. Los streams se devuelven tal cual
+     */
+    NONE(),
+    /**
+     * Formato gzip, para archivos {@code .gz} y {@code .gzip}. Varios
+     * bloques gzip seguidos forman un archivo válido, por lo que se puede
+     * añadir contenido al final sin reescribir el archivo
+     */
+    GZIP(".gz", ".gzip"),
+    /**
+     * Formato zlib/deflate, para archivos {@code .deflate} y {@code .zz}
+     */
+    DEFLATE(".deflate", ".zz");
+
+    /**
+     * El tamaño de los buffers de compresión y descompresión
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String[] suffixes;
+
+    private Compression(String... suffixes) {
+        this.suffixes = suffixes;
+    }
+
+    /**
+     * Devuelve los sufijos de archivo que usan este formato
+     *
+     * @return Los sufijos, con el punto inicial
+     */
+    public String[] getSuffixes() {
+        return this.suffixes.clone();
+    }
+
+    /**
+     * Determina si varios bloques comprimidos por separado pueden escribirse
+     * uno detrás de otro y leerse como un solo contenido
+     *
+     * @return Si se puede añadir contenido al final de un archivo comprimido
+     */
+    public boolean isAppendable() {
+        return this != DEFLATE;
+    }
+
+    /**
+     * Envuelve un stream de lectura para descomprimir los datos al leerlos
+     *
+     * @param in El stream con los datos comprimidos
+     * @return Un stream con los datos descomprimidos
+     * @throws IOException Si la cabecera del formato no es válida
+     */
+    public InputStream wrap(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case DEFLATE:
+                return new InflaterInputStream(
+                        new BufferedInputStream(in, BUFFER_SIZE));
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Envuelve un stream de escritura para comprimir los datos al
+     * escribirlos. La compresión se termina al cerrar el stream devuelto
+     *
+     * @param out El stream donde escribir los datos comprimidos
+     * @return Un stream que comprime lo que se escribe en él
+     * @throws IOException Si no se pudo escribir la cabecera del formato
+     */
+    public OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case DEFLATE:
+                return new BufferedOutputStream(new DeflaterOutputStream(
+                        new BufferedOutputStream(out, BUFFER_SIZE)),
+                        BUFFER_SIZE);
+            default:
+                return out;
+        }
+    }
+
+    /**
+     * Busca el formato de compresión que corresponde a un sufijo de archivo
+     *
+     * @param suffix El sufijo del archivo, con el punto inicial
+     * @return El formato correspondiente o NONE si el sufijo no es de un
+     * formato comprimido
+     */
+    public static Compression forSuffix(String suffix) {
+        for (Compression compression : values()) {
+            for (String candidate : compression.suffixes) {
+                if (candidate.equalsIgnoreCase(suffix)) {
+                    return compression;
+                }
+            }
+        }
+        return NONE;
+    }
+
+}
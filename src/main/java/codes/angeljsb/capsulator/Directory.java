@@ -9,7 +9,10 @@ import java.awt.Desktop;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import codes.angeljsb.capsulator.text.SearchMatch;
+import codes.angeljsb.capsulator.text.TextSearch;
 
 /**
  * Una representación abstracta de la ruta de un directorio
@@ -186,6 +189,48 @@ public class Directory extends File {
                 .toArray(Directory[]::new);
     }
 
+    /**
+     * Busca un texto literal en los archivos de este directorio y de todos
+     * sus subdirectorios. Los archivos se recorren en paralelo y las
+     * coincidencias se devuelven a medida que se encuentran.
+     * <p>
+     * El stream debe cerrarse si no se consume por completo, por ejemplo
+     * usándolo dentro de un try-with-resources
+     * </p>
+     *
+     * @param literal El texto a buscar
+     * @param maxHits La cantidad máxima de coincidencias a devolver o un
+     * número negativo para devolverlas todas
+     * @param formats Los formatos de los archivos en los que buscar. Si no se
+     * pasa ninguno se busca en todos los archivos
+     * @return Las coincidencias encontradas
+     */
+    public Stream<SearchMatch> search(String literal, int maxHits,
+            String... formats) {
+        return TextSearch.search(this, literal, maxHits, formats);
+    }
+
+    /**
+     * Busca una expresión regular en los archivos de este directorio y de
+     * todos sus subdirectorios. Los archivos se recorren en paralelo y las
+     * coincidencias se devuelven a medida que se encuentran.
+     * <p>
+     * El stream debe cerrarse si no se consume por completo, por ejemplo
+     * usándolo dentro de un try-with-resources
+     * </p>
+     *
+     * @param regex La expresión regular a buscar
+     * @param maxHits La cantidad máxima de coincidencias a devolver o un
+     * número negativo para devolverlas todas
+     * @param formats Los formatos de los archivos en los que buscar. Si no se
+     * pasa ninguno se busca en todos los archivos
+     * @return Las coincidencias encontradas
+     */
+    public Stream<SearchMatch> search(Pattern regex, int maxHits,
+            String... formats) {
+        return TextSearch.search(this, regex, maxHits, formats);
+    }
+
     /**
      * Abre la carpeta en el explorador de archivos
      */
@@ -72,19 +72,75 @@ public interface ReadableFile<T> {
      */
     public void fileWrite(T content);
 
+    /**
+     * Escribe un objeto en el archivo correspondiente e informa si se pudo.
+     * Por defecto llama a fileWrite y supone que la escritura fue correcta;
+     * las clases que pueden detectar los errores de escritura lo sobrescriben
+     *
+     * @param content El objeto a escribir
+     * @return Si se pudo escribir el archivo
+     */
+    public default boolean tryFileWrite(T content) {
+        this.fileWrite(content);
+        return true;
+    }
+
     /**
      * Lee el contenido del archivo y lo guarda en content para que después sea
      * fácilmente llamable con getContent()
      */
     public default void read() {
         this.setContent(this.fileRead());
+        this.getCapsule().markClean();
     }
 
     /**
-     * Escribe el contenido actual de este objeto en el archivo
+     * Escribe el contenido actual de este objeto en el archivo. El contenido
+     * se marca como sincronizado antes de escribir, así los cambios hechos
+     * mientras se escribe siguen pendientes; si la escritura falla vuelve a
+     * marcarse como modificado para que se intente de nuevo
      */
     public default void write() {
-        this.fileWrite(this.getContent());
+        Capsule<T> capsule = this.getCapsule();
+        capsule.markClean();
+        if (!this.tryFileWrite(this.getContent())) {
+            capsule.markDirty();
+        }
+    }
+
+    /**
+     * Determina si el contenido ha cambiado desde la última vez que se leyó
+     * o escribió el archivo
+     *
+     * @return Si hay cambios sin escribir en el archivo
+     */
+    public default boolean isDirty() {
+        return this.getCapsule().isDirty();
+    }
+
+    /**
+     * Escribe el contenido actual en el archivo solo si ha cambiado desde la
+     * última lectura o escritura
+     *
+     * @return Si se escribió el archivo
+     */
+    public default boolean writeIfDirty() {
+        if (!this.isDirty()) {
+            return false;
+        }
+        this.write();
+        return true;
+    }
+
+    /**
+     * Programa la escritura del contenido actual en un planificador de
+     * escrituras diferidas en lugar de escribirlo de inmediato. Si el
+     * contenido no ha cambiado no se programa nada
+     *
+     * @param scheduler El planificador que hará la escritura
+     */
+    public default void writeBehind(WriteBehindScheduler scheduler) {
+        scheduler.schedule(this);
     }
 
     /**
@@ -0,0 +1,143 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Planificador de escrituras diferidas para objetos ReadableFile.
+ * <p>
+ * En lugar de escribir el archivo cada vez que se pide, la escritura se
+ * programa para dentro de una ventana de tiempo. Todas las peticiones que
+ * lleguen sobre el mismo archivo durante esa ventana se juntan en una sola
+ * escritura, que se hace en un hilo en segundo plano. Los archivos cuyo
+ * contenido no ha cambiado desde la última lectura o escritura nunca se
+ * reescriben.
+ * </p>
+ * La escritura se hace sincronizada sobre el objeto ReadableFile, así que
+ * quien modifique el contenido desde otros hilos debe sincronizarse sobre el
+ * mismo objeto
+ *
+ * @author Angel
+ */
+public class WriteBehindScheduler implements Closeable {
+
+    private final long window;
+    private final ScheduledExecutorService executor;
+    private final Map<ReadableFile<?>, ScheduledFuture<?>> pending
+            = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Crea un planificador que junta las escrituras pedidas dentro de una
+     * ventana de tiempo
+     *
+     * @param window El tiempo máximo que se retrasa una escritura
+     * @param unit La unidad de tiempo de la ventana
+     */
+    public WriteBehindScheduler(long window, TimeUnit unit) {
+        this.window = unit.toMillis(window);
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "capsulator-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Programa la escritura de un archivo. Si ya hay una escritura pendiente
+     * del mismo archivo no se programa otra, y si el contenido no tiene
+     * cambios no se hace nada
+     *
+     * @param file El archivo a escribir
+     * @throws IllegalStateException Si el planificador ya fue cerrado
+     */
+    public void schedule(ReadableFile<?> file) {
+        if (this.closed) {
+            throw new IllegalStateException("El planificador está cerrado");
+        }
+        if (!file.isDirty()) {
+            return;
+        }
+        this.pending.compute(file, (key, current) -> current != null
+                && !current.isDone()
+                ? current
+                : this.executor.schedule(() -> this.flush(key),
+                        this.window, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Determina si hay una escritura pendiente para un archivo
+     *
+     * @param file El archivo
+     * @return Si el archivo tiene una escritura programada
+     */
+    public boolean isPending(ReadableFile<?> file) {
+        return this.pending.containsKey(file);
+    }
+
+    /**
+     * Escribe de inmediato un archivo si tiene una escritura pendiente
+     *
+     * @param file El archivo a escribir
+     */
+    public void flush(ReadableFile<?> file) {
+        ScheduledFuture<?> future = this.pending.remove(file);
+        if (future == null) {
+            return;
+        }
+        future.cancel(false);
+        synchronized (file) {
+            file.writeIfDirty();
+        }
+    }
+
+    /**
+     * Escribe de inmediato todas las escrituras pendientes y espera a que
+     * termine la que se esté haciendo en segundo plano, si la hay
+     */
+    public void flush() {
+        for (ReadableFile<?> file : new ArrayList<>(this.pending.keySet())) {
+            this.flush(file);
+        }
+        if (!this.executor.isShutdown()) {
+            try {
+                this.executor.submit(() -> {
+                }).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+    }
+
+    /**
+     * Escribe todas las escrituras pendientes y detiene el hilo en segundo
+     * plano. Después de cerrarlo no se pueden programar más escrituras
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.flush();
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(Long.MAX_VALUE,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reparte el trabajo sobre las filas de una imagen en bandas de filas
+ * consecutivas que se procesan en paralelo en el ForkJoinPool común. Las
+ * imagenes pequeñas se procesan en el hilo actual
+ *
+ * @author Angel
+ */
+final class Bands {
+
+    /**
+     * La cantidad mínima de pixeles que debe tener cada banda para que
+     * compense procesarla en otro hilo
+     */
+    static final int MIN_BAND_PIXELS = 64 * 1024;
+
+    private Bands() {
+    }
+
+    /**
+     * Trabajo a aplicar sobre una banda de filas
+     */
+    @FunctionalInterface
+    interface Task {
+
+        /**
+         * Procesa las filas desde {@code from} hasta {@code to}, sin incluir
+         * esta última
+         *
+         * @param from La primera fila
+         * @param to La fila siguiente a la última
+         */
+        void run(int from, int to);
+
+    }
+
+    /**
+     * Ejecuta un trabajo sobre todas las filas, en paralelo si la cantidad de
+     * pixeles lo justifica
+     *
+     * @param rows La cantidad de filas
+     * @param rowPixels El costo de cada fila, normalmente su ancho
+     * @param task El trabajo a ejecutar sobre cada banda
+     */
+    static void run(int rows, int rowPixels, Task task) {
+        int grain = Math.max(1, MIN_BAND_PIXELS / Math.max(1, rowPixels));
+        if (rows <= grain || ForkJoinPool.getCommonPoolParallelism() < 2) {
+            task.run(0, rows);
+            return;
+        }
+        ForkJoinPool.commonPool().invoke(new Band(task, 0, rows, grain));
+    }
+
+    private static class Band extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Task task;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        Band(Task task, int from, int to, int grain) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= this.grain) {
+                this.task.run(this.from, this.to);
+                return;
+            }
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new Band(this.task, this.from, middle, this.grain),
+                    new Band(this.task, middle, this.to, this.grain));
+        }
+
+    }
+
+}
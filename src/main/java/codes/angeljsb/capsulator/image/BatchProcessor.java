@@ -0,0 +1,460 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+import codes.angeljsb.capsulator.BaseFile;
+import codes.angeljsb.capsulator.Directory;
+
+/**
+ * Procesa muchos archivos de imagen en paralelo: los decodifica, les aplica
+ * una operación y escribe el resultado.
+ * <p>
+ * Las tres etapas se solapan. La lectura y la escritura se hacen en un grupo
+ * de hilos de entrada/salida y la operación en un grupo de hilos de cálculo,
+ * cada uno con su propio tamaño. La cantidad de archivos en proceso está
+ * limitada, igual que la cantidad total de pixeles en memoria, que se estima
+ * a partir de la cabecera de cada archivo antes de leerlo: la imagen
+ * decodificada, la redimensionada si se indicó un tamaño de carga y el
+ * resultado de la operación, que se supone del mismo tamaño que su entrada.
+ * Una imagen más grande que el límite se procesa sola.
+ * </p>
+ * Un error en un archivo no detiene el resto: se anota en el reporte y se
+ * sigue con el siguiente archivo
+ *
+ * <pre>
+ * BatchProcessor batch = new BatchProcessor(
+ *         image -&gt; ImageLoader.resizeImage(image, 256, -1));
+ * batch.setOutput(file -&gt; new BaseFile(thumbs, file.getName()));
+ * BatchProcessor.Report report = batch.process(directory);
+ * </pre>
+ *
+ * @author Angel
+ */
+public class BatchProcessor {
+
+    private final UnaryOperator<BufferedImage> operation;
+    private UnaryOperator<BaseFile> output = UnaryOperator.identity();
+    private int cpuThreads = Runtime.getRuntime().availableProcessors();
+    private int ioThreads = 4;
+    private int maxInFlight = 32;
+    private int maxPixels = 64 * 1024 * 1024;
+    private Dimension loadSize = null;
+
+    /**
+     * Crea un procesador que aplica una operación a cada imagen
+     *
+     * @param operation La operación, que recibe la imagen decodificada y
+     * devuelve la imagen a escribir
+     */
+    public BatchProcessor(UnaryOperator<BufferedImage> operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Indica en qué archivo se escribe el resultado de cada imagen. El
+     * formato de escritura es el que indica el sufijo del archivo de salida.
+     * Por defecto se sobrescribe el archivo original
+     *
+     * @param output La función que recibe el archivo original y devuelve el
+     * de salida
+     */
+    public void setOutput(UnaryOperator<BaseFile> output) {
+        this.output = output;
+    }
+
+    /**
+     * Devuelve la cantidad de hilos que aplican la operación
+     *
+     * @return La cantidad de hilos de cálculo
+     */
+    public int getCpuThreads() {
+        return this.cpuThreads;
+    }
+
+    /**
+     * Cambia la cantidad de hilos que aplican la operación. Por defecto es la
+     * cantidad de procesadores
+     *
+     * @param cpuThreads La cantidad de hilos de cálculo
+     */
+    public void setCpuThreads(int cpuThreads) {
+        this.cpuThreads = Math.max(1, cpuThreads);
+    }
+
+    /**
+     * Devuelve la cantidad de hilos que leen y escriben archivos
+     *
+     * @return La cantidad de hilos de entrada/salida
+     */
+    public int getIoThreads() {
+        return this.ioThreads;
+    }
+
+    /**
+     * Cambia la cantidad de hilos que leen y escriben archivos
+     *
+     * @param ioThreads La cantidad de hilos de entrada/salida
+     */
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = Math.max(1, ioThreads);
+    }
+
+    /**
+     * Devuelve la cantidad máxima de archivos en proceso a la vez
+     *
+     * @return La cantidad máxima de archivos en proceso
+     */
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    /**
+     * Cambia la cantidad máxima de archivos en proceso a la vez, que es
+     * también el tamaño de las colas entre etapas
+     *
+     * @param maxInFlight La cantidad máxima de archivos en proceso
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Devuelve la cantidad máxima de pixeles en memoria, contando las
+     * imagenes decodificadas, las intermedias y los resultados
+     *
+     * @return El límite de pixeles
+     */
+    public int getMaxPixels() {
+        return this.maxPixels;
+    }
+
+    /**
+     * Cambia la cantidad máxima de pixeles en memoria, contando las imagenes
+     * decodificadas, las intermedias y los resultados. Cada pixel ocupa
+     * normalmente entre 3 y 4 bytes
+     *
+     * @param maxPixels El límite de pixeles
+     */
+    public void setMaxPixels(int maxPixels) {
+        this.maxPixels = Math.max(1, maxPixels);
+    }
+
+    /**
+     * Indica que las imagenes se decodifiquen directamente con un tamaño
+     * menor, como en ImageLoader.loadImage(File, int, int). Si el ancho o el
+     * alto son negativos se mantiene la escala
+     *
+     * @param width El ancho con el que decodificar
+     * @param height El alto con el que decodificar
+     */
+    public void setLoadSize(int width, int height) {
+        this.loadSize = new Dimension(width, height);
+    }
+
+    /**
+     * Procesa las imagenes de un directorio, sin entrar en sus subdirectorios
+     *
+     * @param directory El directorio
+     * @return El reporte del proceso
+     * @throws InterruptedException Si el hilo se interrumpe mientras espera
+     */
+    public Report process(Directory directory) throws InterruptedException {
+        return this.process(Arrays.asList(
+                directory.listBaseFiles(ImageFile.ACCEPTED_FORMATS)));
+    }
+
+    /**
+     * Procesa una lista de archivos de imagen. El metodo termina cuando todos
+     * los archivos se han escrito o han fallado
+     *
+     * @param files Los archivos
+     * @return El reporte del proceso
+     * @throws InterruptedException Si el hilo se interrumpe mientras espera.
+     * Los archivos en proceso se cancelan
+     */
+    public Report process(List<BaseFile> files) throws InterruptedException {
+        long start = System.nanoTime();
+        Report report = new Report(files.size());
+        Semaphore slots = new Semaphore(this.maxInFlight);
+        Semaphore pixels = new Semaphore(this.maxPixels);
+        ThreadPoolExecutor io = pool("io", this.ioThreads,
+                this.maxInFlight * 2);
+        ThreadPoolExecutor cpu = pool("cpu", this.cpuThreads,
+                this.maxInFlight);
+        try {
+            for (BaseFile file : files) {
+                int cost = this.estimatePixels(file);
+                slots.acquire();
+                pixels.acquire(cost);
+                Job job = new Job(file, cost, report, slots, pixels);
+                io.execute(() -> this.decode(job, cpu, io));
+            }
+            slots.acquire(this.maxInFlight);
+            slots.release(this.maxInFlight);
+        } finally {
+            io.shutdownNow();
+            cpu.shutdownNow();
+        }
+        report.elapsed = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - start);
+        return report;
+    }
+
+    /**
+     * Calcula los pixeles que ocupará un archivo en proceso, sin pasar del
+     * límite para que las imagenes enormes puedan procesarse solas. Se
+     * cuentan la imagen decodificada, que con un tamaño de carga es la
+     * submuestreada, la redimensionada a partir de ella si es distinta y el
+     * resultado de la operación, del mismo tamaño que su entrada
+     */
+    private int estimatePixels(BaseFile file) {
+        Dimension size = ImageLoader.getSize(file);
+        long decoded = (long) size.width * size.height;
+        long count = decoded * 2;
+        if (this.loadSize != null && size.width > 0 && size.height > 0) {
+            Dimension target = ImageLoader.targetSize(size.width,
+                    size.height, this.loadSize.width, this.loadSize.height);
+            int factor = ImageLoader.subsampling(size.width, size.height,
+                    target);
+            int width = (size.width + factor - 1) / factor;
+            int height = (size.height + factor - 1) / factor;
+            long resized = (long) target.width * target.height;
+            count = width == target.width && height == target.height
+                    ? resized * 2
+                    : (long) width * height + resized * 2;
+        }
+        return (int) Math.max(1, Math.min(count, this.maxPixels));
+    }
+
+    private void decode(Job job, ThreadPoolExecutor cpu,
+            ThreadPoolExecutor io) {
+        try {
+            BufferedImage image = this.loadSize == null
+                    ? ImageLoader.decode(job.file, -1, -1, null)
+                    : ImageLoader.decode(job.file, this.loadSize.width,
+                            this.loadSize.height, null);
+            cpu.execute(() -> this.transform(job, image, io));
+        } catch (Exception | OutOfMemoryError ex) {
+            job.fail(Stage.DECODE, ex);
+        }
+    }
+
+    private void transform(Job job, BufferedImage image,
+            ThreadPoolExecutor io) {
+        try {
+            BufferedImage result = this.operation == null
+                    ? image
+                    : this.operation.apply(image);
+            io.execute(() -> this.encode(job, result));
+        } catch (Exception | OutOfMemoryError ex) {
+            job.fail(Stage.TRANSFORM, ex);
+        }
+    }
+
+    private void encode(Job job, BufferedImage image) {
+        try {
+            BaseFile target = this.output.apply(job.file);
+            ImageLoader.encode(image, target);
+            job.done();
+        } catch (Exception | OutOfMemoryError ex) {
+            job.fail(Stage.ENCODE, ex);
+        }
+    }
+
+    private static ThreadPoolExecutor pool(String name, int threads,
+            int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+                task -> {
+                    Thread thread = new Thread(task, "capsulator-batch-"
+                            + name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Las etapas por las que pasa cada archivo
+     */
+    public enum Stage {
+
+        /**
+         * Lectura y decodificación del archivo
+         */
+        DECODE,
+        /**
+         * Aplicación de la operación
+         */
+        TRANSFORM,
+        /**
+         * Codificación y escritura del resultado
+         */
+        ENCODE
+
+    }
+
+    /**
+     * Un archivo en proceso, con los recursos que tiene reservados
+     */
+    private static class Job {
+
+        private final BaseFile file;
+        private final int cost;
+        private final Report report;
+        private final Semaphore slots;
+        private final Semaphore pixels;
+
+        Job(BaseFile file, int cost, Report report, Semaphore slots,
+                Semaphore pixels) {
+            this.file = file;
+            this.cost = cost;
+            this.report = report;
+            this.slots = slots;
+            this.pixels = pixels;
+        }
+
+        void done() {
+            this.report.succeeded.incrementAndGet();
+            this.release();
+        }
+
+        void fail(Stage stage, Throwable error) {
+            this.report.failures.add(new Failure(this.file, stage, error));
+            this.release();
+        }
+
+        private void release() {
+            this.pixels.release(this.cost);
+            this.slots.release();
+        }
+
+    }
+
+    /**
+     * Un archivo que no se pudo procesar
+     */
+    public static class Failure {
+
+        private final BaseFile file;
+        private final Stage stage;
+        private final Throwable error;
+
+        Failure(BaseFile file, Stage stage, Throwable error) {
+            this.file = file;
+            this.stage = stage;
+            this.error = error;
+        }
+
+        /**
+         * Devuelve el archivo que falló
+         *
+         * @return El archivo original
+         */
+        public BaseFile getFile() {
+            return this.file;
+        }
+
+        /**
+         * Devuelve la etapa en la que ocurrió el error
+         *
+         * @return La etapa
+         */
+        public Stage getStage() {
+            return this.stage;
+        }
+
+        /**
+         * Devuelve el error
+         *
+         * @return La excepción o el error lanzado
+         */
+        public Throwable getError() {
+            return this.error;
+        }
+
+        @Override
+        public String toString() {
+            return this.file + " (" + this.stage + "): " + this.error;
+        }
+
+    }
+
+    /**
+     * El resultado de procesar un grupo de archivos
+     */
+    public static class Report {
+
+        private final int total;
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final List<Failure> failures
+                = Collections.synchronizedList(new ArrayList<>());
+        private long elapsed;
+
+        Report(int total) {
+            this.total = total;
+        }
+
+        /**
+         * Devuelve la cantidad de archivos recibidos
+         *
+         * @return La cantidad total de archivos
+         */
+        public int getTotal() {
+            return this.total;
+        }
+
+        /**
+         * Devuelve la cantidad de archivos escritos sin errores
+         *
+         * @return La cantidad de archivos procesados
+         */
+        public int getSucceeded() {
+            return this.succeeded.get();
+        }
+
+        /**
+         * Devuelve los archivos que fallaron, con la etapa y el error
+         *
+         * @return Una copia de la lista de fallos
+         */
+        public List<Failure> getFailures() {
+            synchronized (this.failures) {
+                return new ArrayList<>(this.failures);
+            }
+        }
+
+        /**
+         * Devuelve el tiempo que tardó el proceso completo
+         *
+         * @return El tiempo en milisegundos
+         */
+        public long getElapsed() {
+            return this.elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return this.getSucceeded() + " de " + this.total
+                    + " imagenes procesadas, " + this.failures.size()
+                    + " fallos, " + this.elapsed + " ms";
+        }
+
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Guarda lectores y escritores de imagenes ya creados para reutilizarlos, uno
+ * por formato. Crear un ImageReader o un ImageWriter cuesta bastante más que
+ * leer la cabecera de un archivo, así que en recorridos de muchos archivos
+ * conviene no crear uno nuevo cada vez.
+ * <p>
+ * Cada lector o escritor obtenido es de uso exclusivo hasta que se devuelve
+ * con release(). Al devolverlo se reinicia y, si ya hay suficientes
+ * guardados para su formato, se libera
+ * </p>
+ *
+ * @author Angel
+ */
+final class CodecPool {
+
+    /**
+     * La cantidad máxima de lectores o escritores guardados por formato
+     */
+    static final int MAX_IDLE = 4;
+
+    private static final Map<Object, Deque<ImageReader>> READERS
+            = new ConcurrentHashMap<>();
+    private static final Map<Object, Deque<ImageWriter>> WRITERS
+            = new ConcurrentHashMap<>();
+
+    private CodecPool() {
+    }
+
+    /**
+     * Busca un lector para el formato de un stream, se lo asigna y lo
+     * devuelve. Los lectores que declaran el sufijo del archivo se prueban
+     * primero, así en el caso normal solo se examina el inicio del stream una
+     * vez. El stream queda en la misma posición
+     *
+     * @param in El stream de la imagen
+     * @param file El archivo del stream, para conocer su sufijo. Puede ser
+     * null
+     * @param seekForwardOnly Si el lector solo puede avanzar en el stream
+     * @param ignoreMetadata Si el lector puede ignorar los metadatos
+     * @return El lector o null si ningún lector reconoce el formato
+     * @throws IOException Si no se pudo leer el inicio del stream
+     */
+    static ImageReader reader(ImageInputStream in, File file,
+            boolean seekForwardOnly, boolean ignoreMetadata)
+            throws IOException {
+        if (in == null) {
+            return null;
+        }
+        String suffix = suffix(file);
+        ImageReaderSpi found = null;
+        for (int pass = 0; pass < 2 && found == null; pass++) {
+            Iterator<ImageReaderSpi> providers = IIORegistry
+                    .getDefaultInstance()
+                    .getServiceProviders(ImageReaderSpi.class, true);
+            while (providers.hasNext() && found == null) {
+                ImageReaderSpi provider = providers.next();
+                boolean matches = handles(provider.getFileSuffixes(), suffix);
+                if ((pass == 0) == matches && decodes(provider, in)) {
+                    found = provider;
+                }
+            }
+        }
+        if (found == null) {
+            return null;
+        }
+        ImageReader reader = take(READERS, found);
+        if (reader == null) {
+            reader = found.createReaderInstance();
+        }
+        reader.setInput(in, seekForwardOnly, ignoreMetadata);
+        return reader;
+    }
+
+    private static boolean decodes(ImageReaderSpi provider,
+            ImageInputStream in) throws IOException {
+        in.mark();
+        try {
+            return provider.canDecodeInput(in);
+        } finally {
+            in.reset();
+        }
+    }
+
+    private static String suffix(File file) {
+        if (file == null) {
+            return "";
+        }
+        String name = file.getName();
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Busca un escritor capaz de escribir una imagen en un formato
+     *
+     * @param image La imagen a escribir
+     * @param format El nombre o el sufijo del formato, como "png" o "jpg"
+     * @return El escritor o null si ninguno puede escribir la imagen en ese
+     * formato
+     */
+    static ImageWriter writer(RenderedImage image, String format) {
+        ImageTypeSpecifier type = ImageTypeSpecifier
+                .createFromRenderedImage(image);
+        Iterator<ImageWriterSpi> providers = IIORegistry.getDefaultInstance()
+                .getServiceProviders(ImageWriterSpi.class, true);
+        while (providers.hasNext()) {
+            ImageWriterSpi provider = providers.next();
+            if (handles(provider.getFormatNames(), format)
+                    && provider.canEncodeImage(type)) {
+                ImageWriter writer = take(WRITERS, provider);
+                if (writer == null) {
+                    try {
+                        writer = provider.createWriterInstance();
+                    } catch (IOException ex) {
+                        continue;
+                    }
+                }
+                return writer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Devuelve un lector para que pueda reutilizarse. El stream asignado no
+     * se cierra
+     *
+     * @param reader El lector
+     */
+    static void release(ImageReader reader) {
+        if (reader == null) {
+            return;
+        }
+        reader.reset();
+        put(READERS, reader.getOriginatingProvider(), reader);
+    }
+
+    /**
+     * Devuelve un escritor para que pueda reutilizarse. El stream asignado no
+     * se cierra
+     *
+     * @param writer El escritor
+     */
+    static void release(ImageWriter writer) {
+        if (writer == null) {
+            return;
+        }
+        writer.reset();
+        put(WRITERS, writer.getOriginatingProvider(), writer);
+    }
+
+    private static boolean handles(String[] names, String format) {
+        if (names == null) {
+            return false;
+        }
+        for (String name : names) {
+            if (name.equalsIgnoreCase(format)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static <T> T take(Map<Object, Deque<T>> pool, Object provider) {
+        Deque<T> idle = pool.get(provider);
+        return idle == null ? null : idle.pollFirst();
+    }
+
+    private static <T> void put(Map<Object, Deque<T>> pool, Object provider,
+            T codec) {
+        if (provider == null) {
+            dispose(codec);
+            return;
+        }
+        Deque<T> idle = pool.computeIfAbsent(provider,
+                key -> new ConcurrentLinkedDeque<>());
+        if (idle.size() < MAX_IDLE) {
+            idle.offerFirst(codec);
+        } else {
+            dispose(codec);
+        }
+    }
+
+    private static void dispose(Object codec) {
+        if (codec instanceof ImageReader) {
+            ((ImageReader) codec).dispose();
+        } else if (codec instanceof ImageWriter) {
+            ((ImageWriter) codec).dispose();
+        }
+    }
+
+}
@@ -0,0 +1,456 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Motor de filtros de convolución separables que trabaja directamente sobre
+ * arreglos de pixeles ARGB.
+ * <p>
+ * Cada filtro se aplica en una pasada horizontal y una vertical. La imagen se
+ * reparte por bandas de filas entre los hilos del ForkJoinPool común; cada
+ * banda hace su pasada horizontal en un arreglo de trabajo del hilo, que se
+ * reutiliza entre bandas y entre llamadas, e inmediatamente su pasada
+ * vertical, así que no hace falta un resultado intermedio del tamaño de la
+ * imagen. Los colores se premultiplican por el alfa durante el filtro.
+ * </p>
+ * Los desenfoques grandes se aproximan con varios desenfoques de caja, cuyo
+ * costo por pixel no depende del radio
+ *
+ * @author Angel
+ */
+final class Convolution {
+
+    /**
+     * El sigma a partir del cual el desenfoque gaussiano se aproxima con
+     * tres desenfoques de caja
+     */
+    static final double BOX_SIGMA = 4.0;
+
+    /**
+     * La cantidad mínima de filas de cada banda en la convolución general
+     */
+    private static final int MIN_BAND_ROWS = 32;
+
+    private static final ThreadLocal<float[][]> FLOATS
+            = ThreadLocal.withInitial(() -> new float[2][0]);
+    private static final ThreadLocal<int[][]> INTS
+            = ThreadLocal.withInitial(() -> new int[2][0]);
+
+    private Convolution() {
+    }
+
+    private static float[] floats(int slot, int size) {
+        float[][] buffers = FLOATS.get();
+        if (buffers[slot].length < size) {
+            buffers[slot] = new float[size];
+        }
+        return buffers[slot];
+    }
+
+    private static int[] ints(int slot, int size) {
+        int[][] buffers = INTS.get();
+        if (buffers[slot].length < size) {
+            buffers[slot] = new int[size];
+        }
+        return buffers[slot];
+    }
+
+    /**
+     * Devuelve los pixeles ARGB de una imagen sin copiarlos si ya están en
+     * ese formato. El arreglo devuelto no debe modificarse
+     */
+    static int[] source(BufferedImage image) {
+        int[] data = Rasters.packedData(image);
+        return data != null && image.getType() == BufferedImage.TYPE_INT_ARGB
+                ? data
+                : Rasters.toArgb(image);
+    }
+
+    /**
+     * Aplica un filtro separable: primero el núcleo horizontal y luego el
+     * vertical. Los bordes se extienden repitiendo el último pixel
+     *
+     * @param source Los pixeles ARGB de la imagen
+     * @param width El ancho de la imagen
+     * @param height El alto de la imagen
+     * @param kernelX El núcleo horizontal, de largo impar
+     * @param kernelY El núcleo vertical, de largo impar
+     * @return Los pixeles ARGB filtrados
+     */
+    static int[] separable(int[] source, int width, int height,
+            float[] kernelX, float[] kernelY) {
+        checkKernel(kernelX);
+        checkKernel(kernelY);
+        int radiusX = kernelX.length / 2;
+        int radiusY = kernelY.length / 2;
+        int bandRows = Math.max(MIN_BAND_ROWS, radiusY * 4);
+        int bands = (height + bandRows - 1) / bandRows;
+        int[] result = new int[width * height];
+        Bands.run(bands, width * bandRows, (from, to) -> {
+            for (int band = from; band < to; band++) {
+                int first = band * bandRows;
+                int last = Math.min(height, first + bandRows);
+                int rows = last - first + 2 * radiusY;
+                float[] temp = floats(0, rows * width * 4);
+                float[] line = floats(1, (width + 2 * radiusX) * 4);
+                for (int i = 0; i < rows; i++) {
+                    int y = clamp(first - radiusY + i, height);
+                    load(source, y * width, width, radiusX, line);
+                    horizontal(line, width, kernelX, temp, i * width * 4);
+                }
+                for (int y = first; y < last; y++) {
+                    Arrays.fill(line, 0, width * 4, 0);
+                    for (int k = 0; k < kernelY.length; k++) {
+                        float weight = kernelY[k];
+                        int offset = (y - first + k) * width * 4;
+                        for (int i = 0; i < width * 4; i++) {
+                            line[i] += weight * temp[offset + i];
+                        }
+                    }
+                    store(line, result, y * width, width);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static void checkKernel(float[] kernel) {
+        if (kernel == null || kernel.length % 2 == 0) {
+            throw new IllegalArgumentException("El núcleo debe tener un "
+                    + "largo impar");
+        }
+    }
+
+    /**
+     * Copia una fila premultiplicada en el arreglo de trabajo, con
+     * {@code padding} pixeles repetidos a cada lado
+     */
+    private static void load(int[] source, int offset, int width,
+            int padding, float[] line) {
+        for (int x = -padding, i = 0; x < width + padding; x++, i += 4) {
+            int argb = source[offset + clamp(x, width)];
+            float alpha = (argb >>> 24) / 255f;
+            line[i] = argb >>> 24;
+            line[i + 1] = ((argb >> 16) & 0xFF) * alpha;
+            line[i + 2] = ((argb >> 8) & 0xFF) * alpha;
+            line[i + 3] = (argb & 0xFF) * alpha;
+        }
+    }
+
+    private static void horizontal(float[] line, int width, float[] kernel,
+            float[] out, int offset) {
+        for (int x = 0; x < width; x++) {
+            float a = 0;
+            float r = 0;
+            float g = 0;
+            float b = 0;
+            for (int k = 0, i = x * 4; k < kernel.length; k++, i += 4) {
+                float weight = kernel[k];
+                a += weight * line[i];
+                r += weight * line[i + 1];
+                g += weight * line[i + 2];
+                b += weight * line[i + 3];
+            }
+            int o = offset + x * 4;
+            out[o] = a;
+            out[o + 1] = r;
+            out[o + 2] = g;
+            out[o + 3] = b;
+        }
+    }
+
+    /**
+     * Convierte una fila premultiplicada del arreglo de trabajo en pixeles
+     * ARGB
+     */
+    private static void store(float[] line, int[] out, int offset,
+            int width) {
+        for (int x = 0, i = 0; x < width; x++, i += 4) {
+            int a = clampByte(line[i]);
+            if (a == 0) {
+                out[offset + x] = 0;
+                continue;
+            }
+            float scale = 255f / a;
+            out[offset + x] = a << 24
+                    | clampByte(line[i + 1] * scale) << 16
+                    | clampByte(line[i + 2] * scale) << 8
+                    | clampByte(line[i + 3] * scale);
+        }
+    }
+
+    /**
+     * Crea un núcleo gaussiano normalizado de radio {@code ceil(3 * sigma)}
+     */
+    static float[] gaussian(double sigma) {
+        int radius = (int) Math.ceil(sigma * 3);
+        float[] kernel = new float[radius * 2 + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            double weight = Math.exp(-(i * i) / (2 * sigma * sigma));
+            kernel[i + radius] = (float) weight;
+            sum += weight;
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        return kernel;
+    }
+
+    /**
+     * Desenfoque gaussiano. Con sigma grande se aproxima con tres
+     * desenfoques de caja
+     */
+    static int[] gaussianBlur(int[] source, int width, int height,
+            double sigma) {
+        if (sigma < BOX_SIGMA) {
+            float[] kernel = gaussian(sigma);
+            return separable(source, width, height, kernel, kernel);
+        }
+        return boxBlur(source, width, height, boxesForGaussian(sigma, 3));
+    }
+
+    /**
+     * Calcula los radios de {@code n} desenfoques de caja seguidos cuya
+     * varianza total es la de un gaussiano
+     */
+    static int[] boxesForGaussian(double sigma, int n) {
+        double ideal = Math.sqrt(12 * sigma * sigma / n + 1);
+        int lower = (int) Math.floor(ideal);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        double idealCount = (12 * sigma * sigma - n * lower * lower
+                - 4 * n * lower - 3 * n) / (-4 * lower - 4);
+        long count = Math.round(idealCount);
+        int[] radii = new int[n];
+        for (int i = 0; i < n; i++) {
+            radii[i] = ((i < count ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    /**
+     * Aplica desenfoques de caja seguidos, cada uno en horizontal y en
+     * vertical. Cada pasada mantiene una suma móvil, así que el costo por
+     * pixel no depende del radio
+     *
+     * @param source Los pixeles ARGB de la imagen
+     * @param width El ancho de la imagen
+     * @param height El alto de la imagen
+     * @param radii El radio de cada desenfoque
+     * @return Los pixeles ARGB desenfocados
+     */
+    static int[] boxBlur(int[] source, int width, int height, int[] radii) {
+        int[] rows = new int[width * height];
+        Bands.run(height, width * radii.length, (from, to) -> {
+            float[] line = floats(0, width * 4);
+            float[] other = floats(1, width * 4);
+            for (int y = from; y < to; y++) {
+                load(source, y * width, width, 0, line);
+                for (int radius : radii) {
+                    boxRow(line, other, width, radius);
+                    float[] swap = line;
+                    line = other;
+                    other = swap;
+                }
+                pack(line, rows, y * width, width);
+            }
+        });
+        int[] current = rows;
+        int[] next = new int[width * height];
+        for (int radius : radii) {
+            int[] input = current;
+            int[] output = next;
+            Bands.run(height, width, (from, to)
+                    -> boxColumns(input, output, width, height, radius, from,
+                            to));
+            next = current;
+            current = output;
+        }
+        int[] result = current;
+        Bands.run(height, width, (from, to) -> {
+            for (int i = from * width; i < to * width; i++) {
+                result[i] = unpremultiply(result[i]);
+            }
+        });
+        return result;
+    }
+
+    private static void boxRow(float[] line, float[] out, int width,
+            int radius) {
+        float scale = 1f / (radius * 2 + 1);
+        for (int c = 0; c < 4; c++) {
+            float sum = 0;
+            for (int k = -radius; k <= radius; k++) {
+                sum += line[clamp(k, width) * 4 + c];
+            }
+            for (int x = 0; x < width; x++) {
+                out[x * 4 + c] = sum * scale;
+                sum += line[clamp(x + radius + 1, width) * 4 + c]
+                        - line[clamp(x - radius, width) * 4 + c];
+            }
+        }
+    }
+
+    /**
+     * Desenfoque vertical de caja de las filas {@code from} a {@code to},
+     * sobre pixeles premultiplicados empaquetados
+     */
+    private static void boxColumns(int[] input, int[] output, int width,
+            int height, int radius, int from, int to) {
+        float scale = 1f / (radius * 2 + 1);
+        int[] sums = ints(0, width * 4);
+        Arrays.fill(sums, 0, width * 4, 0);
+        for (int k = from - radius; k <= from + radius; k++) {
+            addRow(input, clamp(k, height) * width, width, sums, 1);
+        }
+        for (int y = from; y < to; y++) {
+            int offset = y * width;
+            for (int x = 0, i = 0; x < width; x++, i += 4) {
+                output[offset + x] = clampByte(sums[i] * scale) << 24
+                        | clampByte(sums[i + 1] * scale) << 16
+                        | clampByte(sums[i + 2] * scale) << 8
+                        | clampByte(sums[i + 3] * scale);
+            }
+            addRow(input, clamp(y + radius + 1, height) * width, width, sums,
+                    1);
+            addRow(input, clamp(y - radius, height) * width, width, sums, -1);
+        }
+    }
+
+    private static void addRow(int[] input, int offset, int width,
+            int[] sums, int sign) {
+        for (int x = 0, i = 0; x < width; x++, i += 4) {
+            int argb = input[offset + x];
+            sums[i] += sign * (argb >>> 24);
+            sums[i + 1] += sign * ((argb >> 16) & 0xFF);
+            sums[i + 2] += sign * ((argb >> 8) & 0xFF);
+            sums[i + 3] += sign * (argb & 0xFF);
+        }
+    }
+
+    /**
+     * Empaqueta una fila premultiplicada en enteros, sin deshacer la
+     * premultiplicación
+     */
+    private static void pack(float[] line, int[] out, int offset,
+            int width) {
+        for (int x = 0, i = 0; x < width; x++, i += 4) {
+            out[offset + x] = clampByte(line[i]) << 24
+                    | clampByte(line[i + 1]) << 16
+                    | clampByte(line[i + 2]) << 8
+                    | clampByte(line[i + 3]);
+        }
+    }
+
+    private static int unpremultiply(int argb) {
+        int a = argb >>> 24;
+        if (a == 0) {
+            return 0;
+        }
+        if (a == 255) {
+            return argb;
+        }
+        int half = a >> 1;
+        return a << 24
+                | Math.min(255, (((argb >> 16) & 0xFF) * 255 + half) / a) << 16
+                | Math.min(255, (((argb >> 8) & 0xFF) * 255 + half) / a) << 8
+                | Math.min(255, ((argb & 0xFF) * 255 + half) / a);
+    }
+
+    /**
+     * Realza los bordes sumando a cada pixel la diferencia con su versión
+     * desenfocada multiplicada por {@code amount}. El alfa no cambia
+     */
+    static int[] sharpen(int[] source, int width, int height, double sigma,
+            double amount) {
+        int[] blurred = gaussianBlur(source, width, height, sigma);
+        float factor = (float) amount;
+        Bands.run(height, width, (from, to) -> {
+            for (int i = from * width; i < to * width; i++) {
+                int original = source[i];
+                int soft = blurred[i];
+                int result = original & 0xFF000000;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int value = (original >> shift) & 0xFF;
+                    int diff = value - ((soft >> shift) & 0xFF);
+                    result |= clampByte(value + diff * factor) << shift;
+                }
+                blurred[i] = result;
+            }
+        });
+        return blurred;
+    }
+
+    /**
+     * Detecta bordes con el operador de Sobel sobre la luminancia, aplicado
+     * como dos pasadas separables. El resultado es una imagen gris opaca en
+     * la que un salto completo de negro a blanco vale 255
+     */
+    static int[] sobel(int[] source, int width, int height) {
+        int bandRows = MIN_BAND_ROWS;
+        int bands = (height + bandRows - 1) / bandRows;
+        int[] result = new int[width * height];
+        Bands.run(bands, width * bandRows, (from, to) -> {
+            for (int band = from; band < to; band++) {
+                int first = band * bandRows;
+                int last = Math.min(height, first + bandRows);
+                int rows = last - first + 2;
+                int[] smooth = ints(0, rows * width);
+                int[] diff = ints(1, rows * width);
+                for (int i = 0; i < rows; i++) {
+                    int offset = clamp(first - 1 + i, height) * width;
+                    for (int x = 0; x < width; x++) {
+                        int left = luminance(source[offset
+                                + clamp(x - 1, width)]);
+                        int center = luminance(source[offset + x]);
+                        int right = luminance(source[offset
+                                + clamp(x + 1, width)]);
+                        smooth[i * width + x] = left + 2 * center + right;
+                        diff[i * width + x] = right - left;
+                    }
+                }
+                for (int y = first; y < last; y++) {
+                    int above = (y - first) * width;
+                    int middle = above + width;
+                    int below = middle + width;
+                    for (int x = 0; x < width; x++) {
+                        int gx = diff[above + x] + 2 * diff[middle + x]
+                                + diff[below + x];
+                        int gy = smooth[below + x] - smooth[above + x];
+                        int value = clampByte(
+                                (float) Math.sqrt(gx * gx + gy * gy) / 4);
+                        result[y * width + x] = 0xFF000000 | value << 16
+                                | value << 8 | value;
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    private static int luminance(int argb) {
+        int a = argb >>> 24;
+        int luma = (((argb >> 16) & 0xFF) * 77 + ((argb >> 8) & 0xFF) * 150
+                + (argb & 0xFF) * 29) >> 8;
+        return luma * a / 255;
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : value >= size ? size - 1 : value;
+    }
+
+    private static int clampByte(float value) {
+        int rounded = (int) (value + 0.5f);
+        return rounded < 0 ? 0 : rounded > 255 ? 255 : rounded;
+    }
+
+}
@@ -0,0 +1,384 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caché en disco de imagenes derivadas, como miniaturas, identificadas por el
+ * archivo original y las operaciones aplicadas.
+ * <p>
+ * La clave de cada imagen es un SHA-256 de la ruta del archivo original, su
+ * fecha de modificación, su tamaño en bytes, la descripción de la cadena de
+ * operaciones, el formato y las opciones de codificación. Si el archivo
+ * original cambia, la clave cambia con él. Encontrar una imagen en la caché
+ * solo consulta el sistema de archivos: no se decodifica nada y se sirven los
+ * bytes ya codificados.
+ * </p>
+ * <p>
+ * Cada imagen nueva se escribe en un archivo temporal del mismo directorio y
+ * se publica moviéndolo de forma atómica, así ningún lector ve un archivo a
+ * medio escribir, aunque varios procesos compartan el directorio. Cuando los
+ * archivos superan el límite de bytes se borran los usados hace más tiempo;
+ * la limpieza se hace con un bloqueo sobre el directorio para que solo un
+ * proceso limpie a la vez
+ * </p>
+ *
+ * <pre>
+ * DerivedImageCache cache = new DerivedImageCache(dir, 512L &lt;&lt; 20);
+ * File thumbnail = cache.get(imageFile.transform().resizeToWidth(200));
+ * </pre>
+ *
+ * @author Angel
+ */
+public class DerivedImageCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_NAME = ".lock";
+    private static final long TOUCH_INTERVAL = 60 * 1000;
+    private static final long TEMP_MAX_AGE = 60 * 60 * 1000;
+    private static final Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final long maxBytes;
+    private final AtomicLong written = new AtomicLong(Long.MAX_VALUE / 2);
+
+    /**
+     * Crea una caché guardada en un directorio. El directorio se crea si no
+     * existe
+     *
+     * @param directory El directorio de la caché
+     * @param maxBytes La cantidad máxima de bytes que pueden ocupar las
+     * imagenes guardadas
+     */
+    public DerivedImageCache(File directory, long maxBytes) {
+        this.directory = directory.toPath().toAbsolutePath().normalize();
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Devuelve el directorio de la caché
+     *
+     * @return El directorio
+     */
+    public File getDirectory() {
+        return this.directory.toFile();
+    }
+
+    /**
+     * Devuelve la cantidad máxima de bytes que pueden ocupar las imagenes
+     * guardadas
+     *
+     * @return El límite en bytes
+     */
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * Obtiene la imagen derivada en el formato del archivo original y con las
+     * opciones de codificación por defecto
+     *
+     * @see #get(ImageTransform, String, EncoderOptions)
+     * @param transform Las operaciones a aplicar sobre el archivo original
+     * @return El archivo de la caché con la imagen derivada
+     * @throws IOException Si no se pudo leer el original o escribir la imagen
+     */
+    public File get(ImageTransform transform) throws IOException {
+        return this.get(transform, transform.getImageFile().getBaseFile()
+                .getSuffix().substring(1), null);
+    }
+
+    /**
+     * Obtiene la imagen derivada de aplicar unas operaciones al archivo de un
+     * ImageFile. Si ya está en la caché se devuelve su archivo sin decodificar
+     * nada; si no, se decodifica el archivo original, se aplican las
+     * operaciones y el resultado se guarda antes de devolverlo. Las
+     * operaciones se aplican a la imagen del archivo, no a la imagen que el
+     * ImageFile tenga cargada
+     *
+     * @param transform Las operaciones a aplicar sobre el archivo original
+     * @param format El formato de la imagen derivada, como "png" o "jpg"
+     * @param options Las opciones de codificación o null para usar las del
+     * escritor
+     * @return El archivo de la caché con la imagen derivada. Puede borrarse
+     * más tarde al limpiar la caché, así que conviene leerlo pronto
+     * @throws IOException Si no se pudo leer el original o escribir la imagen
+     */
+    public File get(ImageTransform transform, String format,
+            EncoderOptions options) throws IOException {
+        File source = transform.getImageFile().getBaseFile();
+        String key = this.key(source, transform, format, options);
+        Path target = this.directory.resolve(key + "." + format);
+        if (this.touch(target)) {
+            return target.toFile();
+        }
+        BufferedImage image = transform.applyToFile();
+        Files.createDirectories(this.directory);
+        Path temp = this.directory.resolve(key + "-" + Long.toHexString(
+                ThreadLocalRandom.current().nextLong()) + TEMP_SUFFIX);
+        try {
+            try (OutputStream out = new BufferedOutputStream(
+                    Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW,
+                            StandardOpenOption.WRITE))) {
+                ImageLoader.writeImage(image, format, out, options);
+            }
+            long size = Files.size(temp);
+            ImageLoader.publish(temp, target);
+            if (this.written.addAndGet(size) > this.maxBytes / 8) {
+                this.trim();
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return target.toFile();
+    }
+
+    /**
+     * Escribe en un stream los bytes de la imagen derivada, creándola si no
+     * está en la caché. El stream no se cierra al terminar
+     *
+     * @see #get(ImageTransform, String, EncoderOptions)
+     * @param transform Las operaciones a aplicar sobre el archivo original
+     * @param format El formato de la imagen derivada, como "png" o "jpg"
+     * @param options Las opciones de codificación o null para usar las del
+     * escritor
+     * @param out El stream en el que escribir
+     * @throws IOException Si no se pudo obtener la imagen o escribir en el
+     * stream
+     */
+    public void writeTo(ImageTransform transform, String format,
+            EncoderOptions options, OutputStream out) throws IOException {
+        try {
+            Files.copy(this.get(transform, format, options).toPath(), out);
+        } catch (NoSuchFileException ex) {
+            // Otro proceso la borró al limpiar; se vuelve a crear
+            Files.copy(this.get(transform, format, options).toPath(), out);
+        }
+    }
+
+    /**
+     * Calcula la clave con la que se guarda una imagen derivada
+     *
+     * @param source El archivo original
+     * @param transform Las operaciones a aplicar
+     * @param format El formato de la imagen derivada
+     * @param options Las opciones de codificación o null
+     * @return El SHA-256 de la descripción, en hexadecimal
+     */
+    String key(File source, ImageTransform transform, String format,
+            EncoderOptions options) {
+        String description = source.getAbsolutePath()
+                + '\n' + source.lastModified()
+                + '\n' + source.length()
+                + '\n' + transform.describe()
+                + '\n' + format.toLowerCase()
+                + '\n' + (options == null ? "" : options.describe());
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest(description.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Marca un archivo de la caché como usado ahora. Para no escribir en el
+     * disco en cada acierto, solo se actualiza si la última marca es antigua
+     *
+     * @return Si el archivo existe
+     */
+    private boolean touch(Path file) {
+        try {
+            long now = System.currentTimeMillis();
+            FileTime used = Files.getLastModifiedTime(file);
+            if (now - used.toMillis() > TOUCH_INTERVAL) {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(now));
+            }
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Calcula la cantidad de bytes que ocupan las imagenes guardadas
+     *
+     * @return El total en bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (Entry entry : this.entries()) {
+            size += entry.size;
+        }
+        return size;
+    }
+
+    /**
+     * Borra las imagenes usadas hace más tiempo hasta que el total quede
+     * dentro del límite de bytes, y los archivos temporales abandonados. Se
+     * llama sola a medida que se guardan imagenes
+     */
+    public void trim() {
+        this.written.set(0);
+        this.locked(() -> {
+            List<Entry> entries = this.entries();
+            long size = 0;
+            for (Entry entry : entries) {
+                size += entry.size;
+            }
+            entries.sort(Comparator.comparingLong(entry -> entry.used));
+            for (Entry entry : entries) {
+                if (size <= this.maxBytes) {
+                    break;
+                }
+                if (delete(entry.path)) {
+                    size -= entry.size;
+                }
+            }
+            this.deleteAbandoned();
+        });
+    }
+
+    /**
+     * Borra todas las imagenes guardadas
+     */
+    public void clear() {
+        this.locked(() -> {
+            for (Entry entry : this.entries()) {
+                delete(entry.path);
+            }
+        });
+    }
+
+    private void deleteAbandoned() {
+        long limit = System.currentTimeMillis() - TEMP_MAX_AGE;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                this.directory, "*" + TEMP_SUFFIX)) {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).toMillis() < limit) {
+                    delete(file);
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            // Todavía no hay nada guardado
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    private static boolean delete(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            // Otro proceso puede estar leyéndolo; se intentará más tarde
+            return false;
+        }
+    }
+
+    /**
+     * Ejecuta una acción con el bloqueo del directorio, que excluye a los
+     * demás hilos de este proceso y a los demás procesos
+     */
+    private void locked(Runnable action) {
+        Object monitor = LOCKS.computeIfAbsent(this.directory,
+                key -> new Object());
+        synchronized (monitor) {
+            try {
+                Files.createDirectories(this.directory);
+                try (FileChannel channel = FileChannel.open(
+                        this.directory.resolve(LOCK_NAME),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    FileLock lock = channel.lock();
+                    try {
+                        action.run();
+                    } finally {
+                        lock.release();
+                    }
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                this.directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.startsWith(".") || name.endsWith(TEMP_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(
+                            file, BasicFileAttributes.class);
+                    if (attributes.isRegularFile()) {
+                        entries.add(new Entry(file, attributes.size(),
+                                attributes.lastModifiedTime().toMillis()));
+                    }
+                } catch (NoSuchFileException ex) {
+                    // Otro proceso lo borró mientras se recorría
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            // Todavía no hay nada guardado
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return entries;
+    }
+
+    /**
+     * Una imagen guardada con su tamaño y su último uso
+     */
+    private static class Entry {
+
+        private final Path path;
+        private final long size;
+        private final long used;
+
+        Entry(Path path, long size, long used) {
+            this.path = path;
+            this.size = size;
+            this.used = used;
+        }
+
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import org.w3c.dom.Node;
+
+/**
+ * Las opciones con las que se codifica una imagen al escribirla. Cada opción
+ * solo se aplica si el escritor del formato la soporta; las demás se ignoran.
+ * Una instancia nueva usa los valores por defecto de cada escritor
+ *
+ * @author Angel
+ */
+public class EncoderOptions {
+
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+
+    private float quality = -1;
+    private boolean progressive = false;
+    private int compressionLevel = -1;
+    private boolean stripMetadata = false;
+
+    /**
+     * Devuelve la calidad de compresión con pérdida, usada por formatos como
+     * jpeg
+     *
+     * @return La calidad entre 0 y 1 o -1 si se usa la del escritor
+     */
+    public float getQuality() {
+        return this.quality;
+    }
+
+    /**
+     * Asigna la calidad de compresión con pérdida, usada por formatos como
+     * jpeg. Un valor negativo usa la calidad por defecto del escritor
+     *
+     * @param quality La calidad entre 0 (menor tamaño) y 1 (mejor calidad)
+     */
+    public void setQuality(float quality) {
+        this.quality = quality < 0 ? -1 : Math.min(1, quality);
+    }
+
+    /**
+     * Indica si la imagen se escribe de forma progresiva: jpeg progresivo o
+     * png entrelazado
+     *
+     * @return Si la imagen se escribe de forma progresiva
+     */
+    public boolean isProgressive() {
+        return this.progressive;
+    }
+
+    /**
+     * Asigna si la imagen se escribe de forma progresiva: jpeg progresivo o
+     * png entrelazado
+     *
+     * @param progressive Si la imagen se escribe de forma progresiva
+     */
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    /**
+     * Devuelve el nivel de compresión sin pérdida, usado por formatos como
+     * png
+     *
+     * @return El nivel entre 0 y 9 o -1 si se usa el del escritor
+     */
+    public int getCompressionLevel() {
+        return this.compressionLevel;
+    }
+
+    /**
+     * Asigna el nivel de compresión sin pérdida, usado por formatos como png.
+     * Un valor negativo usa el nivel por defecto del escritor
+     *
+     * @param compressionLevel El nivel entre 0 (más rápido) y 9 (menor
+     * tamaño)
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel < 0
+                ? -1
+                : Math.min(9, compressionLevel);
+    }
+
+    /**
+     * Indica si se quitan los metadatos opcionales del archivo escrito
+     *
+     * @return Si se quitan los metadatos
+     */
+    public boolean isStripMetadata() {
+        return this.stripMetadata;
+    }
+
+    /**
+     * Asigna si se quitan los metadatos opcionales del archivo escrito, como
+     * el segmento JFIF de los jpeg y las miniaturas
+     *
+     * @param stripMetadata Si se quitan los metadatos
+     */
+    public void setStripMetadata(boolean stripMetadata) {
+        this.stripMetadata = stripMetadata;
+    }
+
+    /**
+     * Devuelve una descripción de las opciones que no usan el valor por
+     * defecto, que es igual para dos instancias con las mismas opciones
+     *
+     * @return La descripción, como {@code quality(0.8);progressive}, o una
+     * cadena vacía si todas las opciones son las del escritor
+     */
+    public String describe() {
+        StringBuilder builder = new StringBuilder();
+        if (this.quality >= 0) {
+            builder.append(";quality(").append(this.quality).append(')');
+        }
+        if (this.progressive) {
+            builder.append(";progressive");
+        }
+        if (this.compressionLevel >= 0) {
+            builder.append(";compression(").append(this.compressionLevel)
+                    .append(')');
+        }
+        if (this.stripMetadata) {
+            builder.append(";strip");
+        }
+        return builder.length() == 0 ? "" : builder.substring(1);
+    }
+
+    /**
+     * Crea los parámetros de escritura para un escritor según estas opciones
+     *
+     * @param writer El escritor
+     * @param format El nombre o el sufijo del formato
+     * @return Los parámetros de escritura
+     */
+    ImageWriteParam toParam(ImageWriter writer, String format) {
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteProgressive()) {
+            param.setProgressiveMode(this.progressive
+                    ? ImageWriteParam.MODE_DEFAULT
+                    : ImageWriteParam.MODE_DISABLED);
+        }
+        float level = this.compressionQuality(format);
+        if (level >= 0 && param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality(level);
+        }
+        return param;
+    }
+
+    private float compressionQuality(String format) {
+        if (format.equalsIgnoreCase("png")) {
+            return this.compressionLevel < 0
+                    ? -1
+                    : 1 - this.compressionLevel / 9f;
+        }
+        return this.quality;
+    }
+
+    /**
+     * Crea los metadatos que se escriben con la imagen. Si no se quitan los
+     * metadatos se dejan los del escritor
+     *
+     * @param writer El escritor
+     * @param type El tipo de la imagen a escribir
+     * @param param Los parámetros de escritura
+     * @return Los metadatos o null para usar los del escritor
+     */
+    IIOMetadata toMetadata(ImageWriter writer, ImageTypeSpecifier type,
+            ImageWriteParam param) {
+        if (!this.stripMetadata) {
+            return null;
+        }
+        IIOMetadata metadata = writer.getDefaultImageMetadata(type, param);
+        if (metadata == null || metadata.isReadOnly()
+                || !JPEG_METADATA.equals(
+                        metadata.getNativeMetadataFormatName())) {
+            return metadata;
+        }
+        IIOMetadataNode root = (IIOMetadataNode) metadata
+                .getAsTree(JPEG_METADATA);
+        Node variety = root.getElementsByTagName("JPEGvariety").item(0);
+        if (variety != null) {
+            while (variety.hasChildNodes()) {
+                variety.removeChild(variety.getFirstChild());
+            }
+        }
+        try {
+            metadata.setFromTree(JPEG_METADATA, root);
+        } catch (IIOInvalidTreeException ex) {
+            ex.printStackTrace(System.err);
+        }
+        return metadata;
+    }
+
+}
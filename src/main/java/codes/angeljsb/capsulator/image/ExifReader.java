@@ -0,0 +1,153 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lee la etiqueta Orientation de los datos EXIF de un archivo de imagen sin
+ * decodificar la imagen. Reconoce el segmento APP1 de los jpg y el bloque
+ * eXIf de los png; el resto de los formatos se consideran derechos
+ *
+ * @author Angel
+ */
+final class ExifReader {
+
+    private static final int ORIENTATION_TAG = 0x0112;
+    private static final int PNG_EXIF = 0x65584966;
+    private static final int PNG_IDAT = 0x49444154;
+    private static final int PNG_IEND = 0x49454E44;
+
+    private ExifReader() {
+    }
+
+    /**
+     * Lee el valor de la etiqueta Orientation
+     *
+     * @param file El archivo de imagen
+     * @return Un valor del 1 al 8, o 1 si el archivo no tiene la etiqueta
+     * @throws IOException Si no se pudo leer el archivo
+     */
+    static int readOrientation(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            int signature = in.readUnsignedShort();
+            if (signature == 0xFFD8) {
+                return fromJpeg(in);
+            }
+            if (signature == 0x8950) {
+                skip(in, 6);
+                return fromPng(in);
+            }
+            return 1;
+        } catch (EOFException ex) {
+            return 1;
+        }
+    }
+
+    /**
+     * Recorre los segmentos de un jpg hasta encontrar el de EXIF o el inicio
+     * de los datos de la imagen
+     */
+    private static int fromJpeg(DataInputStream in) throws IOException {
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xFF) {
+                return 1;
+            }
+            int code = in.readUnsignedByte();
+            while (code == 0xFF) {
+                code = in.readUnsignedByte();
+            }
+            if (code == 0xD9 || code == 0xDA) {
+                return 1;
+            }
+            if (code == 0x01 || (code >= 0xD0 && code <= 0xD7)) {
+                continue;
+            }
+            int length = in.readUnsignedShort() - 2;
+            if (code == 0xE1 && length > 14) {
+                byte[] data = new byte[length];
+                in.readFully(data);
+                if (new String(data, 0, 6, StandardCharsets.ISO_8859_1)
+                        .equals("Exif\0\0")) {
+                    return fromTiff(data, 6);
+                }
+            } else {
+                skip(in, length);
+            }
+        }
+    }
+
+    /**
+     * Recorre los bloques de un png hasta encontrar el de EXIF o el inicio de
+     * los datos de la imagen
+     */
+    private static int fromPng(DataInputStream in) throws IOException {
+        while (true) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type == PNG_IDAT || type == PNG_IEND || length < 0) {
+                return 1;
+            }
+            if (type == PNG_EXIF) {
+                byte[] data = new byte[length];
+                in.readFully(data);
+                return fromTiff(data, 0);
+            }
+            skip(in, length + 4);
+        }
+    }
+
+    /**
+     * Busca la etiqueta en el primer directorio de una estructura TIFF
+     */
+    private static int fromTiff(byte[] data, int offset) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (data[offset] == 'I' && data[offset + 1] == 'I') {
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+            } else if (data[offset] != 'M' || data[offset + 1] != 'M') {
+                return 1;
+            }
+            if (buffer.getShort(offset + 2) != 42) {
+                return 1;
+            }
+            int directory = offset + buffer.getInt(offset + 4);
+            int count = buffer.getShort(directory) & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                int entry = directory + 2 + i * 12;
+                if ((buffer.getShort(entry) & 0xFFFF) == ORIENTATION_TAG) {
+                    int value = buffer.getShort(entry + 8) & 0xFFFF;
+                    return value >= 1 && value <= 8 ? value : 1;
+                }
+            }
+            return 1;
+        } catch (IndexOutOfBoundsException ex) {
+            return 1;
+        }
+    }
+
+    private static void skip(DataInputStream in, int count)
+            throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+}
@@ -6,12 +6,19 @@
 package codes.angeljsb.capsulator.image;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Consumer;
 import codes.angeljsb.capsulator.BaseFile;
 import codes.angeljsb.capsulator.FileTypeException;
 import codes.angeljsb.capsulator.ReadableFile;
 import codes.angeljsb.capsulator.util.Capsule;
 import codes.angeljsb.capsulator.util.Painter;
+import codes.angeljsb.capsulator.util.PixelKernel;
 
 /**
  * Clase que hace referencia a un archivo que contiene una imagen y facilita su
@@ -30,6 +37,9 @@ public class ImageFile implements ReadableFile<BufferedImage> {
 
     private final Capsule<BufferedImage> capsule = new Capsule();
     private final BaseFile baseFile;
+    private Dimension loadHint = null;
+    private boolean reduced = false;
+    private EncoderOptions encoderOptions = null;
 
     /**
      * Crea un objeto ImageFile anidado a un archivo baseFile
@@ -44,17 +54,111 @@ public class ImageFile implements ReadableFile<BufferedImage> {
         this.baseFile = baseFile;
     }
 
+    /**
+     * Devuelve el tamaño con el que se carga la imagen del archivo
+     *
+     * @return El tamaño pedido al cargar o null si se carga el tamaño original
+     */
+    public Dimension getLoadHint() {
+        return this.loadHint;
+    }
+
+    /**
+     * Indica el tamaño con el que se debe cargar la imagen del archivo. Al
+     * leer el archivo solo se decodifican los pixeles necesarios para ese
+     * tamaño, lo que es mucho más rápido para miniaturas. Si el ancho o el
+     * alto son negativos se mantiene la escala.
+     * <p>
+     * <b>Importante:</b> la imagen leída así es una versión reducida del
+     * archivo. Para no reemplazar el original por la miniatura, mientras el
+     * contenido venga de una lectura con pista write(), writeIfDirty() y las
+     * escrituras diferidas no escriben el archivo: imprimen el error y el
+     * contenido sigue marcado como modificado. Vuelve a poder escribirse
+     * después de leer el archivo sin pista, con clearLoadHint() y read() o
+     * con loadProgressive(). Para guardar la miniatura en otro sitio se
+     * puede usar writeTo()
+     * </p>
+     *
+     * @param width El ancho con el que cargar la imagen
+     * @param height El alto con el que cargar la imagen
+     */
+    public void setLoadHint(int width, int height) {
+        this.loadHint = new Dimension(width, height);
+    }
+
+    /**
+     * Hace que la imagen del archivo vuelva a cargarse con su tamaño original
+     */
+    public void clearLoadHint() {
+        this.loadHint = null;
+    }
+
+    /**
+     * Devuelve las opciones con las que se codifica la imagen al escribir el
+     * archivo
+     *
+     * @return Las opciones o null si se usan las del escritor
+     */
+    public EncoderOptions getEncoderOptions() {
+        return this.encoderOptions;
+    }
+
+    /**
+     * Asigna las opciones con las que se codifica la imagen al escribir el
+     * archivo, como la calidad de un jpeg o el nivel de compresión de un png
+     *
+     * @param encoderOptions Las opciones o null para usar las del escritor
+     */
+    public void setEncoderOptions(EncoderOptions encoderOptions) {
+        this.encoderOptions = encoderOptions;
+    }
+
+    /**
+     * Codifica la imagen contenida en un stream, en el formato del archivo y
+     * con las opciones de codificación asignadas. Si no hay imagen contenida,
+     * carga la del archivo. El stream no se cierra al terminar
+     *
+     * @param out El stream en el que escribir la imagen
+     * @throws IOException Si no se pudo escribir la imagen
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ImageLoader.writeImage(this.get(),
+                this.getBaseFile().getSuffix().substring(1), out,
+                this.encoderOptions);
+    }
+
     /**
      * Redimensiona la imagen contenida en el objeto. Si el ancho o el alto son
      * numeros negativos, se ajustará al lado con valor positivo y se mantendrá
-     * la escala
+     * la escala.<br>
+     * Si no hay imagen contenida, la imagen del archivo se carga directamente
+     * con el tamaño pedido, decodificando solo los pixeles necesarios
      *
      * @param width El nuevo ancho
      * @param height El nuevo alto
+     * @throws IllegalArgumentException Si el ancho o el alto son 0
      */
     public void resize(int width, int height) {
+        this.resize(width, height, null);
+    }
+
+    /**
+     * Redimensiona la imagen contenida con el filtro de interpolación
+     * indicado. Funciona igual que {@link #resize(int, int)}
+     *
+     * @param width El nuevo ancho
+     * @param height El nuevo alto
+     * @param filter El filtro a usar, o null para usar el predeterminado
+     */
+    public void resize(int width, int height, Resampler.Filter filter) {
+        if (!this.isLoaded()) {
+            this.setContent(ImageLoader.loadImage(this.baseFile, width,
+                    height, filter));
+            this.getCapsule().dispatchChange();
+            return;
+        }
         this.setContent(
-                ImageLoader.resizeImage(this.get(), width, height)
+                ImageLoader.resizeImage(this.get(), width, height, filter)
         );
     }
 
@@ -78,8 +182,7 @@ public class ImageFile implements ReadableFile<BufferedImage> {
      * @param max El maximo
      */
     public void resizeToWidth(int min, int max) {
-        BufferedImage content = this.get();
-        int width = content.getWidth();
+        int width = this.getWidth();
         if (width < min) {
             this.resizeToWidth(min);
         } else if (width > max) {
@@ -107,8 +210,7 @@ public class ImageFile implements ReadableFile<BufferedImage> {
      * @param max El maximo
      */
     public void resizeToHeight(int min, int max) {
-        BufferedImage content = this.get();
-        int height = content.getHeight();
+        int height = this.getHeight();
         if (height < min) {
             this.resizeToHeight(min);
         } else if (height > max) {
@@ -116,6 +218,18 @@ public class ImageFile implements ReadableFile<BufferedImage> {
         }
     }
     
+    /**
+     * Crea una cadena de operaciones geométricas que se aplican juntas al
+     * llamar a su metodo apply(), con una sola imagen intermedia y un solo
+     * cambio en la capsula
+     *
+     * @return Una cadena vacía para esta imagen
+     * @see ImageTransform
+     */
+    public ImageTransform transform() {
+        return new ImageTransform(this);
+    }
+
     /**
      * Rota la imagén contenida en la cantidad de grados especificada
      * en la dirección de las agujas del reloj.
@@ -127,6 +241,102 @@ public class ImageFile implements ReadableFile<BufferedImage> {
         this.setContent(ImageLoader.rotate(this.get(), degrees));
     }
 
+    /**
+     * Desenfoca la imagen contenida con un filtro gaussiano. Si no hay imagen
+     * contenida, carga la del archivo y la desenfoca
+     *
+     * @see ImageLoader#gaussianBlur(BufferedImage, double)
+     * @param sigma La desviación estándar del filtro, en pixeles
+     */
+    public void blur(double sigma) {
+        this.setContent(ImageLoader.gaussianBlur(this.get(), sigma));
+    }
+
+    /**
+     * Desenfoca la imagen contenida promediando cada pixel con los que lo
+     * rodean. Si no hay imagen contenida, carga la del archivo y la desenfoca
+     *
+     * @see ImageLoader#boxBlur(BufferedImage, int)
+     * @param radius La distancia máxima de los pixeles promediados
+     */
+    public void boxBlur(int radius) {
+        this.setContent(ImageLoader.boxBlur(this.get(), radius));
+    }
+
+    /**
+     * Realza los bordes de la imagen contenida. Si no hay imagen contenida,
+     * carga la del archivo y la enfoca
+     *
+     * @see ImageLoader#sharpen(BufferedImage, double, double)
+     * @param sigma El sigma del desenfoque con el que se compara
+     * @param amount Cuánto se realzan los bordes
+     */
+    public void sharpen(double sigma, double amount) {
+        this.setContent(ImageLoader.sharpen(this.get(), sigma, amount));
+    }
+
+    /**
+     * Reemplaza la imagen contenida por la intensidad de sus bordes. Si no
+     * hay imagen contenida, carga la del archivo
+     *
+     * @see ImageLoader#detectEdges(BufferedImage)
+     */
+    public void detectEdges() {
+        this.setContent(ImageLoader.detectEdges(this.get()));
+    }
+
+    /**
+     * Aplica un filtro de convolución separable a la imagen contenida. Si no
+     * hay imagen contenida, carga la del archivo y la filtra
+     *
+     * @see ImageLoader#convolve(BufferedImage, float[], float[])
+     * @param kernelX Los pesos horizontales, de largo impar y centrados
+     * @param kernelY Los pesos verticales, de largo impar y centrados
+     */
+    public void convolve(float[] kernelX, float[] kernelY) {
+        this.setContent(ImageLoader.convolve(this.get(), kernelX, kernelY));
+    }
+
+    /**
+     * Refleja la imagen contenida de izquierda a derecha. Si no hay imagen
+     * contenida, carga la del archivo y la refleja
+     */
+    public void flipHorizontal() {
+        this.setContent(ImageLoader.flip(this.get(), true));
+    }
+
+    /**
+     * Refleja la imagen contenida de arriba a abajo. Si no hay imagen
+     * contenida, carga la del archivo y la refleja
+     */
+    public void flipVertical() {
+        this.setContent(ImageLoader.flip(this.get(), false));
+    }
+
+    /**
+     * Obtiene la orientación indicada en los datos EXIF del archivo
+     *
+     * @return La orientación de la imagen guardada
+     */
+    public Orientation getOrientation() {
+        return ImageLoader.getOrientation(this.baseFile);
+    }
+
+    /**
+     * Pone derecha la imagen contenida según la orientación EXIF del archivo,
+     * sin interpolar. Si no hay imagen contenida, carga la del archivo
+     *
+     * @return Si la imagen tuvo que girarse o reflejarse
+     */
+    public boolean autoRotate() {
+        Orientation orientation = this.getOrientation();
+        if (orientation == Orientation.NORMAL) {
+            return false;
+        }
+        this.setContent(orientation.apply(this.get()));
+        return true;
+    }
+
     /**
      * Función que obtiene un objeto painter y mediante este pinta algo en la
      * imagen
@@ -135,10 +345,299 @@ public class ImageFile implements ReadableFile<BufferedImage> {
      * pintar en ella
      */
     public void paint(Painter painter) {
-        painter.paint(this.get().createGraphics());
-        this.getCapsule().dispatchChange();
+        BufferedImage image = this.get();
+        painter.paint(image.createGraphics());
+        this.getCapsule().editContent(image);
+    }
+
+    /**
+     * Pinta en la imagen dividiéndola en teselas de 256 x 256 pixeles que se
+     * pintan en paralelo, cada una con sus propios graficos recortados a la
+     * tesela. Al terminar todas se notifica un único cambio
+     *
+     * @see ImageLoader#paintTiles(BufferedImage, Painter, int, int)
+     * @param painter La función que pinta en los graficos de cada tesela.
+     * Se ejecuta una vez por tesela, desde varios hilos a la vez
+     */
+    public void paintTiled(Painter painter) {
+        this.paintTiled(painter, 256, 256);
+    }
+
+    /**
+     * Pinta en la imagen dividiéndola en teselas que se pintan en paralelo,
+     * cada una con sus propios graficos recortados a la tesela. Al terminar
+     * todas se notifica un único cambio
+     *
+     * @see ImageLoader#paintTiles(BufferedImage, Painter, int, int)
+     * @param painter La función que pinta en los graficos de cada tesela.
+     * Se ejecuta una vez por tesela, desde varios hilos a la vez
+     * @param tileWidth El ancho de cada tesela
+     * @param tileHeight El alto de cada tesela
+     */
+    public void paintTiled(Painter painter, int tileWidth, int tileHeight) {
+        BufferedImage image = this.get();
+        ImageLoader.paintTiles(image, painter, tileWidth, tileHeight);
+        this.getCapsule().editContent(image);
     }
     
+    /**
+     * Carga la imagen del archivo en segundo plano, publicando en la capsula
+     * la imagen a medio decodificar como mucho cada 100 milisegundos
+     *
+     * @see #loadProgressive(long)
+     * @return La carga, que permite esperarla o cancelarla
+     */
+    public ProgressiveLoad loadProgressive() {
+        return this.loadProgressive(100);
+    }
+
+    /**
+     * Carga la imagen del archivo en segundo plano, con su tamaño original.
+     * Mientras avanza, la imagen a medio decodificar se publica en la capsula
+     * como mucho una vez por intervalo, y al terminar se publica la imagen
+     * completa y el contenido queda sin cambios pendientes. Mientras tanto
+     * el contenido tampoco se marca como modificado, así writeIfDirty() o una
+     * escritura diferida nunca guardan en el archivo una imagen a medio
+     * decodificar. Si la carga se cancela o falla, la capsula vuelve a tener
+     * el contenido anterior, con los cambios pendientes que tuviera.<br>
+     * Los agentes de escucha de la capsula se ejecutan en el hilo de la
+     * carga, así que una interfaz gráfica debe pasar al suyo para pintar
+     *
+     * @param interval El tiempo mínimo entre dos publicaciones, en
+     * milisegundos
+     * @return La carga, que permite esperarla o cancelarla
+     */
+    public ProgressiveLoad loadProgressive(long interval) {
+        Capsule<BufferedImage> capsule = this.getCapsule();
+        BufferedImage previous = capsule.getContent();
+        boolean dirty = capsule.isDirty();
+        boolean[] published = {false};
+        return ImageLoader.loadProgressive(this.baseFile, interval,
+                image -> {
+                    published[0] = true;
+                    capsule.markClean();
+                    capsule.pushContent(image);
+                }, image -> {
+                    if (image != null) {
+                        this.reduced = false;
+                        capsule.markClean();
+                        capsule.pushContent(image);
+                    } else if (published[0] && dirty) {
+                        capsule.editContent(previous);
+                    } else if (published[0]) {
+                        capsule.pushContent(previous);
+                    }
+                });
+    }
+
+    /**
+     * Lee una región de la imagen. Si hay una imagen contenida se copia la
+     * región de esa imagen; si no, se decodifica solo esa región del archivo
+     * sin cargar la imagen completa ni cambiar el contenido de la capsula. La
+     * región se recorta a los límites de la imagen
+     *
+     * @param region La región a leer, en pixeles
+     * @return Una imagen nueva con los pixeles de la región
+     * @throws IllegalArgumentException Si la región no toca la imagen
+     */
+    public BufferedImage readRegion(Rectangle region) {
+        if (!this.isLoaded()) {
+            return ImageLoader.loadRegion(this.baseFile, region);
+        }
+        BufferedImage content = this.getContent();
+        Rectangle clipped = ImageLoader.clipRegion(region,
+                content.getWidth(), content.getHeight());
+        BufferedImage pixels = content.getSubimage(clipped.x, clipped.y,
+                clipped.width, clipped.height);
+        WritableRaster raster = pixels.getRaster()
+                .createCompatibleWritableRaster(clipped.width, clipped.height);
+        pixels.copyData(raster);
+        return new BufferedImage(content.getColorModel(), raster,
+                content.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Abre un recorrido por teselas de la imagen del archivo, para procesar
+     * imagenes más grandes que la memoria disponible. Ignora el contenido de
+     * la capsula. El recorrido debe cerrarse al terminar
+     *
+     * @param tileWidth El ancho de cada tesela
+     * @param tileHeight El alto de cada tesela
+     * @return El recorrido o null si no se pudo abrir el archivo
+     * @see ImageTiles
+     */
+    public ImageTiles tiles(int tileWidth, int tileHeight) {
+        return ImageLoader.tiles(this.baseFile, tileWidth, tileHeight);
+    }
+
+    /**
+     * Abre el archivo para recorrer sus imagenes una por una, como los
+     * cuadros de un gif animado, guardando en memoria como mucho los últimos
+     * {@link ImageFrames#DEFAULT_CACHE_SIZE} cuadros. No cambia el contenido
+     * de la capsula. El recorrido debe cerrarse al terminar
+     *
+     * @see ImageFrames
+     * @return El recorrido de cuadros o null si no se pudo abrir el archivo
+     */
+    public ImageFrames frames() {
+        return this.frames(ImageFrames.DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Abre el archivo para recorrer sus imagenes una por una, como los
+     * cuadros de un gif animado. No cambia el contenido de la capsula. El
+     * recorrido debe cerrarse al terminar
+     *
+     * @see ImageFrames
+     * @param cacheSize La cantidad de cuadros decodificados que se guardan
+     * @return El recorrido de cuadros o null si no se pudo abrir el archivo
+     */
+    public ImageFrames frames(int cacheSize) {
+        return ImageLoader.frames(this.baseFile, cacheSize);
+    }
+
+    /**
+     * Obtiene la pirámide de resoluciones del archivo guardada en un
+     * directorio, con teselas de 256 x 256 pixeles. Si el directorio no tiene
+     * una pirámide del archivo tal como está ahora, se construye leyendo el
+     * archivo por bandas, sin cargar la imagen completa
+     *
+     * @see ImagePyramid
+     * @param directory El directorio de la pirámide
+     * @return La pirámide o null si no se pudo construir
+     */
+    public ImagePyramid pyramid(File directory) {
+        return this.pyramid(directory, 256);
+    }
+
+    /**
+     * Obtiene la pirámide de resoluciones del archivo guardada en un
+     * directorio. Si el directorio no tiene una pirámide del archivo tal como
+     * está ahora, o tiene otro tamaño de tesela, se construye leyendo el
+     * archivo por bandas, sin cargar la imagen completa. Las teselas se
+     * guardan en jpg si el archivo es jpg y en png en otro caso
+     *
+     * @see ImagePyramid
+     * @param directory El directorio de la pirámide
+     * @param tileSize El ancho y alto de las teselas. Debe ser par
+     * @return La pirámide o null si no se pudo construir
+     */
+    public ImagePyramid pyramid(File directory, int tileSize) {
+        try {
+            if (new File(directory, ImagePyramid.DESCRIPTOR).isFile()) {
+                ImagePyramid pyramid = ImagePyramid.open(directory);
+                if (pyramid.isCurrent(this.baseFile)
+                        && pyramid.getTileSize() == tileSize) {
+                    return pyramid;
+                }
+            }
+            String format = this.baseFile.compareFormat("jpg", "jpeg")
+                    ? "jpg"
+                    : "png";
+            return ImagePyramid.build(this.baseFile, directory, tileSize,
+                    format, this.encoderOptions);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Aplica una función a cada pixel de la imagen contenida, en el hilo
+     * actual. Si no hay imagen contenida, carga la del archivo. Al terminar
+     * se notifica un único cambio
+     *
+     * @param kernel La función que calcula el nuevo color de cada pixel
+     */
+    public void applyKernel(PixelKernel kernel) {
+        this.applyKernel(kernel, false);
+    }
+
+    /**
+     * Aplica una función a cada pixel de la imagen contenida, repartiendo las
+     * filas entre varios hilos si se pide. Si no hay imagen contenida, carga
+     * la del archivo. Al terminar se notifica un único cambio
+     *
+     * @param kernel La función que calcula el nuevo color de cada pixel
+     * @param parallel Si se reparten las filas entre varios hilos
+     */
+    public void applyKernel(PixelKernel kernel, boolean parallel) {
+        BufferedImage image = this.get();
+        ImageLoader.applyKernel(image, kernel, parallel);
+        this.getCapsule().editContent(image);
+    }
+
+    /**
+     * Devuelve el arreglo donde la imagen contenida guarda sus pixeles, si es
+     * de tipo TYPE_INT_ARGB o TYPE_INT_RGB. Cada entero es un pixel ARGB (en
+     * TYPE_INT_RGB el alfa se ignora), fila por fila.<br>
+     * Los cambios hechos en el arreglo modifican la imagen sin notificar a la
+     * capsula; para modificarla conviene usar editPixels()
+     *
+     * @return El arreglo de pixeles o null si no hay imagen contenida o es de
+     * otro tipo
+     */
+    public int[] getIntPixels() {
+        return this.isLoaded() ? Rasters.packedData(this.getContent()) : null;
+    }
+
+    /**
+     * Devuelve el arreglo donde la imagen contenida guarda sus pixeles, si
+     * los guarda como bytes intercalados, como en TYPE_3BYTE_BGR,
+     * TYPE_4BYTE_ABGR o TYPE_BYTE_GRAY. El orden de los componentes de cada
+     * pixel depende del tipo de la imagen.<br>
+     * Los cambios hechos en el arreglo modifican la imagen sin notificar a la
+     * capsula; para modificarla conviene usar editPixels()
+     *
+     * @return El arreglo de bytes o null si no hay imagen contenida o guarda
+     * sus pixeles de otra forma
+     */
+    public byte[] getBytePixels() {
+        return this.isLoaded()
+                ? Rasters.interleavedData(this.getContent())
+                : null;
+    }
+
+    /**
+     * Entrega el arreglo de pixeles ARGB de la imagen contenida para
+     * modificarlo directamente y notifica un único cambio al terminar. Si la
+     * imagen no guarda sus pixeles en un arreglo de enteros, primero se
+     * convierte a TYPE_INT_ARGB, o a TYPE_INT_RGB si no tiene transparencia,
+     * y la copia convertida reemplaza al contenido. Si no hay imagen
+     * contenida, carga la del archivo
+     *
+     * @param editor La función que recibe el arreglo, fila por fila, con
+     * {@code getWidth()} pixeles por fila
+     */
+    public void editPixels(Consumer<int[]> editor) {
+        BufferedImage image = this.get();
+        int[] pixels = Rasters.packedData(image);
+        if (pixels == null) {
+            image = Rasters.toImage(Rasters.toArgb(image), image.getWidth(),
+                    image.getHeight(), image.getColorModel().hasAlpha()
+                    ? BufferedImage.TYPE_INT_ARGB
+                    : BufferedImage.TYPE_INT_RGB);
+            pixels = Rasters.packedData(image);
+        }
+        editor.accept(pixels);
+        this.getCapsule().editContent(image);
+    }
+
+    /**
+     * Obtiene los datos de la cabecera del archivo: tamaño, formato, modelo
+     * de color y cantidad de imagenes. Ignora el contenido de la capsula
+     *
+     * @return La cabecera o null si no se pudo leer el archivo
+     */
+    public ImageHeader getHeader() {
+        try {
+            return ImageHeader.of(this.baseFile);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return null;
+        }
+    }
+
     /**
      * Obtiene el tamaño de la imagen contenida por el archivo.
      * Ignora el contenido de la capsula.
@@ -199,12 +698,36 @@ public class ImageFile implements ReadableFile<BufferedImage> {
 
     @Override
     public BufferedImage fileRead() {
+        this.reduced = this.loadHint != null;
+        if (this.loadHint != null) {
+            return ImageLoader.loadImage(this.getBaseFile(),
+                    this.loadHint.width, this.loadHint.height);
+        }
         return ImageLoader.loadImage(this.getBaseFile());
     }
 
     @Override
     public void fileWrite(BufferedImage content) {
-        ImageLoader.writeImage(content, this.getBaseFile());
+        this.tryFileWrite(content);
+    }
+
+    @Override
+    public boolean tryFileWrite(BufferedImage content) {
+        if (this.reduced) {
+            System.err.println("La imagen se leyó reducida con una pista de "
+                    + "carga y no se escribe para no reemplazar el original");
+            return false;
+        }
+        try {
+
+            ImageLoader.encode(content, this.getBaseFile(),
+                    this.encoderOptions);
+            return true;
+
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+        return false;
     }
 
     @Override
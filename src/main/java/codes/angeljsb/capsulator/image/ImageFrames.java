@@ -0,0 +1,419 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Recorre las imagenes de un archivo con varias, como los cuadros de un gif
+ * animado, decodificando cada una solo cuando se pide.
+ * <p>
+ * Se usa un único lector para todo el recorrido y solo se guardan en memoria
+ * los últimos cuadros pedidos, así una animación larga nunca se carga
+ * completa. En los gif cada cuadro se compone sobre los anteriores según su
+ * posición y su método de borrado, de modo que todos miden lo mismo que la
+ * animación. Recorrer los cuadros en orden decodifica cada uno una vez; pedir
+ * un cuadro anterior al último compuesto que ya no está guardado obliga a
+ * componer de nuevo desde el principio.
+ * </p>
+ *
+ * <pre>
+ * try (ImageFrames frames = imageFile.frames()) {
+ *     for (ImageFrames.Frame frame : frames) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Angel
+ */
+public class ImageFrames implements Iterable<ImageFrames.Frame>, Closeable {
+
+    /**
+     * La cantidad de cuadros que se guardan por defecto
+     */
+    public static final int DEFAULT_CACHE_SIZE = 4;
+
+    private static final String GIF_IMAGE = "javax_imageio_gif_image_1.0";
+    private static final String GIF_STREAM = "javax_imageio_gif_stream_1.0";
+
+    private final ImageInputStream in;
+    private final ImageReader reader;
+    private final Map<Integer, Frame> cache;
+    private final boolean composed;
+    private final int width;
+    private final int height;
+    private int frameCount = -1;
+    private boolean closed = false;
+
+    private BufferedImage canvas = null;
+    private BufferedImage saved = null;
+    private int cursor = -1;
+    private String disposal = null;
+    private Rectangle disposalBounds = null;
+
+    /**
+     * Crea el recorrido a partir de un lector con su stream ya asignado.
+     * ImageLoader.frames() es quien lo crea
+     */
+    ImageFrames(ImageInputStream in, ImageReader reader, int cacheSize)
+            throws IOException {
+        this.in = in;
+        this.reader = reader;
+        int capacity = Math.max(1, cacheSize);
+        this.cache = new LinkedHashMap<Integer, Frame>(capacity * 2, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, Frame> eldest) {
+                return this.size() > capacity;
+            }
+        };
+        this.composed = reader.getFormatName().equalsIgnoreCase("gif");
+        int[] size = this.composed ? this.screenSize() : null;
+        this.width = size != null ? size[0] : reader.getWidth(0);
+        this.height = size != null ? size[1] : reader.getHeight(0);
+    }
+
+    /**
+     * Lee el tamaño de la animación de los metadatos de un gif
+     */
+    private int[] screenSize() throws IOException {
+        IIOMetadata metadata = this.reader.getStreamMetadata();
+        if (metadata == null) {
+            return null;
+        }
+        Node screen = child(metadata.getAsTree(GIF_STREAM),
+                "LogicalScreenDescriptor");
+        int screenWidth = intAttribute(screen, "logicalScreenWidth", 0);
+        int screenHeight = intAttribute(screen, "logicalScreenHeight", 0);
+        return screenWidth > 0 && screenHeight > 0
+                ? new int[]{screenWidth, screenHeight}
+                : null;
+    }
+
+    /**
+     * Devuelve el ancho de los cuadros
+     *
+     * @return El ancho
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Devuelve el alto de los cuadros
+     *
+     * @return El alto
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Devuelve la cantidad de cuadros. En algunos formatos, como el gif,
+     * contarlos obliga a recorrer el archivo, pero sin decodificar los
+     * cuadros; el resultado se guarda
+     *
+     * @return La cantidad de cuadros
+     * @throws UncheckedIOException Si no se pudo recorrer el archivo
+     */
+    public synchronized int getFrameCount() {
+        if (this.frameCount < 0) {
+            this.checkOpen();
+            try {
+                this.frameCount = this.reader.getNumImages(true);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return this.frameCount;
+    }
+
+    /**
+     * Devuelve un cuadro, decodificándolo si no está guardado. La imagen
+     * devuelta puede estar guardada y devolverse otra vez, así que no debe
+     * modificarse
+     *
+     * @param index El número del cuadro, empezando en 0
+     * @return El cuadro
+     * @throws IndexOutOfBoundsException Si no existe el cuadro
+     * @throws UncheckedIOException Si no se pudo leer el cuadro
+     * @throws IllegalStateException Si el recorrido está cerrado
+     */
+    public synchronized Frame getFrame(int index) {
+        this.checkOpen();
+        if (index < 0 || index >= this.getFrameCount()) {
+            throw new IndexOutOfBoundsException("Cuadro " + index + " de "
+                    + this.getFrameCount());
+        }
+        Frame frame = this.cache.get(index);
+        if (frame != null) {
+            return frame;
+        }
+        try {
+            if (!this.composed) {
+                frame = new Frame(index, ImageLoader.validImageType(
+                        this.reader.read(index)), 0);
+            } else {
+                if (index <= this.cursor) {
+                    this.canvas = null;
+                    this.cursor = -1;
+                }
+                while (this.cursor < index) {
+                    frame = this.compose(this.cursor + 1);
+                    this.cache.put(frame.index, frame);
+                }
+                return frame;
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        this.cache.put(index, frame);
+        return frame;
+    }
+
+    /**
+     * Compone el cuadro siguiente de un gif sobre los anteriores
+     */
+    private Frame compose(int index) throws IOException {
+        if (this.canvas == null) {
+            this.canvas = new BufferedImage(this.width, this.height,
+                    BufferedImage.TYPE_INT_ARGB);
+        } else if ("restoreToBackgroundColor".equals(this.disposal)) {
+            Graphics2D g = this.canvas.createGraphics();
+            g.setComposite(AlphaComposite.Clear);
+            g.fill(this.disposalBounds);
+            g.dispose();
+        } else if ("restoreToPrevious".equals(this.disposal)
+                && this.saved != null) {
+            this.canvas = this.saved;
+        }
+        Node root = this.reader.getImageMetadata(index).getAsTree(GIF_IMAGE);
+        Node descriptor = child(root, "ImageDescriptor");
+        Node control = child(root, "GraphicControlExtension");
+        BufferedImage image = this.reader.read(index);
+        this.disposalBounds = new Rectangle(
+                intAttribute(descriptor, "imageLeftPosition", 0),
+                intAttribute(descriptor, "imageTopPosition", 0),
+                image.getWidth(), image.getHeight());
+        this.disposal = control == null
+                ? null
+                : ((IIOMetadataNode) control).getAttribute("disposalMethod");
+        this.saved = "restoreToPrevious".equals(this.disposal)
+                ? copy(this.canvas)
+                : null;
+        Graphics2D g = this.canvas.createGraphics();
+        g.drawImage(image, this.disposalBounds.x, this.disposalBounds.y,
+                null);
+        g.dispose();
+        this.cursor = index;
+        return new Frame(index, copy(this.canvas),
+                intAttribute(control, "delayTime", 0) * 10);
+    }
+
+    /**
+     * Completa los metadatos con los que se escribe un cuadro de un gif: el
+     * tiempo que se muestra, su método de borrado y, en el primer cuadro, que
+     * la animación se repite indefinidamente. En otros formatos no se hace
+     * nada
+     *
+     * @param metadata Los metadatos por defecto del escritor
+     * @param frame El cuadro que se va a escribir
+     * @param first Si es el primer cuadro
+     * @throws IOException Si el escritor no acepta los metadatos
+     */
+    static void fillMetadata(IIOMetadata metadata, Frame frame, boolean first)
+            throws IOException {
+        if (metadata == null || metadata.isReadOnly()
+                || !GIF_IMAGE.equals(metadata.getNativeMetadataFormatName())) {
+            return;
+        }
+        IIOMetadataNode root = (IIOMetadataNode) metadata
+                .getAsTree(GIF_IMAGE);
+        IIOMetadataNode control = node(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod",
+                frame.getImage().getColorModel().hasAlpha()
+                ? "restoreToBackgroundColor"
+                : "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        if (control.getAttribute("transparentColorFlag").isEmpty()) {
+            control.setAttribute("transparentColorFlag", "FALSE");
+            control.setAttribute("transparentColorIndex", "0");
+        }
+        control.setAttribute("delayTime",
+                String.valueOf(Math.max(0, frame.getDelay()) / 10));
+        if (first) {
+            IIOMetadataNode extension = new IIOMetadataNode(
+                    "ApplicationExtension");
+            extension.setAttribute("applicationID", "NETSCAPE");
+            extension.setAttribute("authenticationCode", "2.0");
+            extension.setUserObject(new byte[]{1, 0, 0});
+            node(root, "ApplicationExtensions").appendChild(extension);
+        }
+        metadata.setFromTree(GIF_IMAGE, root);
+    }
+
+    private static IIOMetadataNode node(IIOMetadataNode root, String name) {
+        Node found = child(root, name);
+        if (found == null) {
+            found = new IIOMetadataNode(name);
+            root.appendChild(found);
+        }
+        return (IIOMetadataNode) found;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        return new BufferedImage(image.getColorModel(),
+                image.copyData(null), image.isAlphaPremultiplied(), null);
+    }
+
+    private static Node child(Node node, String name) {
+        for (Node child = node == null ? null : node.getFirstChild();
+                child != null; child = child.getNextSibling()) {
+            if (child.getNodeName().equals(name)) {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private static int intAttribute(Node node, String name, int fallback) {
+        if (!(node instanceof IIOMetadataNode)) {
+            return fallback;
+        }
+        String value = ((IIOMetadataNode) node).getAttribute(name);
+        try {
+            return value.isEmpty() ? fallback : Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            return fallback;
+        }
+    }
+
+    private void checkOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("El recorrido está cerrado");
+        }
+    }
+
+    /**
+     * Recorre los cuadros en orden, decodificando cada uno al pedirlo
+     *
+     * @return El iterador de cuadros
+     */
+    @Override
+    public Iterator<Frame> iterator() {
+        return new Iterator<Frame>() {
+
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < ImageFrames.this.getFrameCount();
+            }
+
+            @Override
+            public Frame next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return ImageFrames.this.getFrame(this.next++);
+            }
+
+        };
+    }
+
+    /**
+     * Libera el lector y cierra el archivo
+     */
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.cache.clear();
+        this.canvas = null;
+        this.saved = null;
+        CodecPool.release(this.reader);
+        try {
+            this.in.close();
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Un cuadro con su imagen y el tiempo que se muestra
+     */
+    public static class Frame {
+
+        private final int index;
+        private final BufferedImage image;
+        private final int delay;
+
+        /**
+         * Crea un cuadro para escribirlo con ImageLoader.writeFrames()
+         *
+         * @param image La imagen del cuadro
+         * @param delay El tiempo que se muestra el cuadro, en milisegundos
+         */
+        public Frame(BufferedImage image, int delay) {
+            this(-1, image, delay);
+        }
+
+        Frame(int index, BufferedImage image, int delay) {
+            this.index = index;
+            this.image = image;
+            this.delay = delay;
+        }
+
+        /**
+         * Devuelve el número del cuadro en su archivo
+         *
+         * @return El número, empezando en 0, o -1 si no se leyó de un
+         * archivo
+         */
+        public int getIndex() {
+            return this.index;
+        }
+
+        /**
+         * Devuelve la imagen del cuadro
+         *
+         * @return La imagen
+         */
+        public BufferedImage getImage() {
+            return this.image;
+        }
+
+        /**
+         * Devuelve el tiempo que se muestra el cuadro
+         *
+         * @return El tiempo en milisegundos, o 0 si el formato no lo indica
+         */
+        public int getDelay() {
+            return this.delay;
+        }
+
+    }
+
+}
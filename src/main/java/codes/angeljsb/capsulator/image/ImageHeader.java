@@ -0,0 +1,249 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.Dimension;
+import java.awt.image.ColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Los datos de la cabecera de un archivo de imagen: tamaño, formato, modelo
+ * de color y cantidad de imagenes.
+ * <p>
+ * Las cabeceras leídas se guardan en una caché compartida identificada por
+ * la ruta del archivo, su fecha de modificación y su tamaño, de modo que
+ * consultar varias veces el tamaño de un archivo que no ha cambiado solo lo
+ * abre la primera vez. La caché guarda como máximo {@link #CACHE_SIZE}
+ * cabeceras y descarta las usadas hace más tiempo
+ * </p>
+ *
+ * @author Angel
+ */
+public class ImageHeader {
+
+    /**
+     * La cantidad máxima de cabeceras guardadas en la caché
+     */
+    public static final int CACHE_SIZE = 4096;
+
+    private static final Map<String, ImageHeader> CACHE
+            = new LinkedHashMap<String, ImageHeader>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, ImageHeader> eldest) {
+            return this.size() > CACHE_SIZE;
+        }
+    };
+
+    private final String path;
+    private final long lastModified;
+    private final long length;
+    private final int width;
+    private final int height;
+    private final String formatName;
+    private final int frameCount;
+    private volatile ColorModel colorModel = null;
+
+    private ImageHeader(File file, long lastModified, long length,
+            int width, int height, String formatName, int frameCount) {
+        this.path = file.getAbsolutePath();
+        this.lastModified = lastModified;
+        this.length = length;
+        this.width = width;
+        this.height = height;
+        this.formatName = formatName;
+        this.frameCount = frameCount;
+    }
+
+    /**
+     * Obtiene la cabecera de un archivo, desde la caché si el archivo no ha
+     * cambiado desde la última lectura
+     *
+     * @param file El archivo de imagen
+     * @return La cabecera del archivo
+     * @throws IOException Si no se pudo leer el archivo o su formato no es
+     * reconocido
+     */
+    public static ImageHeader of(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        ImageHeader header;
+        synchronized (CACHE) {
+            header = CACHE.get(path);
+        }
+        if (header != null && header.lastModified == lastModified
+                && header.length == length) {
+            return header;
+        }
+        header = read(file, lastModified, length);
+        synchronized (CACHE) {
+            CACHE.put(path, header);
+        }
+        return header;
+    }
+
+    private static ImageHeader read(File file, long lastModified,
+            long length) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = CodecPool.reader(in, file, false, true);
+            if (reader == null) {
+                throw new IOException("Formato de imagen no reconocido: "
+                        + file);
+            }
+            try {
+                return new ImageHeader(file, lastModified, length,
+                        reader.getWidth(0), reader.getHeight(0),
+                        reader.getFormatName().toLowerCase(),
+                        reader.getNumImages(false));
+            } finally {
+                CodecPool.release(reader);
+            }
+        }
+    }
+
+    /**
+     * Descarta la cabecera guardada de un archivo
+     *
+     * @param file El archivo
+     */
+    public static void invalidate(File file) {
+        synchronized (CACHE) {
+            CACHE.remove(file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Descarta todas las cabeceras guardadas
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * Devuelve la ruta absoluta del archivo
+     *
+     * @return La ruta del archivo
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * Devuelve el ancho de la primera imagen del archivo
+     *
+     * @return El ancho
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Devuelve el alto de la primera imagen del archivo
+     *
+     * @return El alto
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Devuelve el tamaño de la primera imagen del archivo
+     *
+     * @return El tamaño
+     */
+    public Dimension getSize() {
+        return new Dimension(this.width, this.height);
+    }
+
+    /**
+     * Devuelve el nombre del formato según el lector, como "png" o "jpeg"
+     *
+     * @return El nombre del formato en minúsculas
+     */
+    public String getFormatName() {
+        return this.formatName;
+    }
+
+    /**
+     * Devuelve el modelo de color con el que se decodifica la imagen por
+     * defecto. Obtenerlo obliga a algunos lectores a examinar más datos que
+     * el tamaño, así que se lee la primera vez que se pide
+     *
+     * @return El modelo de color o null si el lector no lo indica o no se
+     * pudo leer el archivo
+     */
+    public ColorModel getColorModel() {
+        if (this.colorModel == null) {
+            File file = new File(this.path);
+            try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+                ImageReader reader = CodecPool.reader(in, file, false, true);
+                if (reader == null) {
+                    return null;
+                }
+                try {
+                    Iterator<ImageTypeSpecifier> types
+                            = reader.getImageTypes(0);
+                    this.colorModel = types.hasNext()
+                            ? types.next().getColorModel()
+                            : null;
+                } finally {
+                    CodecPool.release(reader);
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+        return this.colorModel;
+    }
+
+    /**
+     * Devuelve la cantidad de imagenes del archivo, como los cuadros de un gif
+     * animado. Solo se conoce si el formato la indica en la cabecera
+     *
+     * @return La cantidad de imagenes o -1 si no se conoce sin recorrer el
+     * archivo completo
+     */
+    public int getFrameCount() {
+        return this.frameCount;
+    }
+
+    /**
+     * Devuelve la fecha de modificación que tenía el archivo al leer la
+     * cabecera
+     *
+     * @return La fecha de modificación en milisegundos
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * Devuelve el tamaño en bytes que tenía el archivo al leer la cabecera
+     *
+     * @return El tamaño del archivo
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    @Override
+    public String toString() {
+        return this.path + " [" + this.formatName + " " + this.width + "x"
+                + this.height + ", " + this.frameCount + " imagenes]";
+    }
+
+}
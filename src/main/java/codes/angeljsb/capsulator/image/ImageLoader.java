@@ -6,15 +6,35 @@
 package codes.angeljsb.capsulator.image;
 
 import java.awt.Dimension;
-import java.awt.Image;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import codes.angeljsb.capsulator.BaseFile;
+import codes.angeljsb.capsulator.util.Painter;
+import codes.angeljsb.capsulator.util.PixelKernel;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 
@@ -86,7 +106,8 @@ public class ImageLoader {
     /**
      * Redimensiona una BufferedImage y se asegura de que el resultado sea otra
      * BufferedImage del tamaño solicitado. La redimensión se hace con suavisado
-     * de forma predeterminada.<br><br>
+     * de forma predeterminada: promedio por área al reducir e interpolación
+     * lineal al ampliar.<br><br>
      *
      * Si se añade un número negativo en ancho o en alto, se redimensionará de
      * manera que se conserve la escala original. Si se hace esto en ambos, no
@@ -98,15 +119,27 @@ public class ImageLoader {
      * @return La imagen redimensionada
      */
     public static BufferedImage resizeImage(BufferedImage image, int width, int height) {
+        return resizeImage(image, width, height, null);
+    }
+
+    /**
+     * Redimensiona una BufferedImage con el filtro de interpolación indicado.
+     * Los números negativos en ancho o en alto se tratan igual que en
+     * {@link #resizeImage(BufferedImage, int, int)}
+     *
+     * @param image La imagen a redimensionar
+     * @param width El nuevo ancho que se busca
+     * @param height El nuevo alto que se busca
+     * @param filter El filtro a usar, o null para usar el predeterminado
+     * @return La imagen redimensionada
+     * @see Resampler
+     */
+    public static BufferedImage resizeImage(BufferedImage image, int width,
+            int height, Resampler.Filter filter) {
         if (sizeEquals(image, width, height)) {
             return image;
         }
-        BufferedImage temp;
-        Image img;
-        img = image.getScaledInstance(width, height, Image.SCALE_SMOOTH);
-        temp = new BufferedImage(img.getWidth(null), img.getHeight(null), image.getType());
-        temp.getGraphics().drawImage(img, 0, 0, null);
-        return temp;
+        return Resampler.resize(image, width, height, filter);
     }
 
     /**
@@ -123,8 +156,7 @@ public class ImageLoader {
         BufferedImage readed;
         try {
 
-            readed = ImageIO.read(file);
-            readed = validImageType(readed);
+            readed = decode(file, -1, -1, null);
 
         } catch (IOException ex) {
             ex.printStackTrace(System.err);
@@ -133,6 +165,294 @@ public class ImageLoader {
         return readed;
     }
 
+    /**
+     * Calcula el tamaño final de una redimensión. Si el ancho o el alto son
+     * negativos se calculan a partir del otro lado manteniendo la escala
+     *
+     * @param sourceWidth El ancho original
+     * @param sourceHeight El alto original
+     * @param width El ancho solicitado
+     * @param height El alto solicitado
+     * @return El tamaño final o el tamaño original si ambos lados son
+     * negativos
+     * @throws IllegalArgumentException Si el ancho o el alto son 0
+     */
+    static Dimension targetSize(int sourceWidth, int sourceHeight,
+            int width, int height) {
+        if (width == 0 || height == 0) {
+            throw new IllegalArgumentException("Tamaño no válido: "
+                    + width + "x" + height);
+        }
+        if (width < 0 && height < 0) {
+            return new Dimension(sourceWidth, sourceHeight);
+        }
+        if (width < 0) {
+            width = (int) Math.max(1,
+                    Math.round((double) sourceWidth * height / sourceHeight));
+        } else if (height < 0) {
+            height = (int) Math.max(1,
+                    Math.round((double) sourceHeight * width / sourceWidth));
+        }
+        return new Dimension(width, height);
+    }
+
+    /**
+     * Carga una imagen desde un archivo con el tamaño solicitado, decodificando
+     * solo los pixeles necesarios.<br><br>
+     *
+     * La imagen se lee con un submuestreo entero (uno de cada n pixeles) tan
+     * grande como sea posible sin quedar por debajo del tamaño pedido, y el
+     * resultado se redimensiona después al tamaño exacto. Para miniaturas de
+     * imagenes grandes esto reduce mucho el tiempo de decodificación y la
+     * memoria usada.<br><br>
+     *
+     * Si el ancho o el alto son negativos se mantiene la escala original. De
+     * haber algún error en la lectura del archivo, se imprime el mensaje en la
+     * salida normal de errores y se devuelve una imagen oscura de tamaño 10 x
+     * 10.
+     *
+     * @param file El archivo de la imagen
+     * @param width El ancho que se quiere
+     * @param height El alto que se quiere
+     * @return La imagen leída y redimensionada
+     * @throws IllegalArgumentException Si el ancho o el alto son 0
+     */
+    public static BufferedImage loadImage(File file, int width, int height) {
+        return loadImage(file, width, height, null);
+    }
+
+    /**
+     * Carga una imagen desde un archivo con el tamaño solicitado, usando el
+     * filtro indicado para la redimensión final. Funciona igual que
+     * {@link #loadImage(File, int, int)}
+     *
+     * @param file El archivo de la imagen
+     * @param width El ancho que se quiere
+     * @param height El alto que se quiere
+     * @param filter El filtro a usar, o null para usar el predeterminado
+     * @return La imagen leída y redimensionada
+     */
+    public static BufferedImage loadImage(File file, int width, int height,
+            Resampler.Filter filter) {
+        try {
+            return decode(file, width, height, filter);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return new BufferedImage(10, 10, 1);
+        }
+    }
+
+    /**
+     * Decodifica una imagen con el tamaño solicitado como
+     * {@link #loadImage(File, int, int, Resampler.Filter)}, pero lanzando los
+     * errores de lectura en lugar de imprimirlos. Si ambos lados son
+     * negativos se lee la imagen completa
+     *
+     * @param file El archivo de la imagen
+     * @param width El ancho que se quiere
+     * @param height El alto que se quiere
+     * @param filter El filtro a usar, o null para usar el predeterminado
+     * @return La imagen leída y redimensionada
+     * @throws IOException Si no se pudo leer el archivo o su formato no es
+     * reconocido
+     */
+    static BufferedImage decode(File file, int width, int height,
+            Resampler.Filter filter) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = CodecPool.reader(in, file, false, true);
+            if (reader == null) {
+                throw new IOException("Formato de imagen no reconocido: "
+                        + file);
+            }
+            try {
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                Dimension target = targetSize(sourceWidth, sourceHeight,
+                        width, height);
+                int factor = subsampling(sourceWidth, sourceHeight, target);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                BufferedImage readed = validImageType(reader.read(0, param));
+                return resizeImage(readed, target.width, target.height,
+                        filter);
+            } finally {
+                CodecPool.release(reader);
+            }
+        }
+    }
+
+    /**
+     * Calcula el submuestreo con el que decode() lee una imagen: el mayor
+     * posible sin quedar por debajo del tamaño final en ningún eje
+     *
+     * @param sourceWidth El ancho original
+     * @param sourceHeight El alto original
+     * @param target El tamaño final
+     * @return El factor de submuestreo, 1 para leer todos los pixeles
+     */
+    static int subsampling(int sourceWidth, int sourceHeight,
+            Dimension target) {
+        return Math.max(1, Math.min(sourceWidth / target.width,
+                sourceHeight / target.height));
+    }
+
+    /**
+     * Carga una imagen desde un archivo leyendo uno de cada {@code factor}
+     * pixeles en cada eje. La imagen resultante mide el tamaño original
+     * dividido entre el factor, redondeado hacia arriba.<br><br>
+     *
+     * De haber algún error en la lectura del archivo, se imprime el mensaje en
+     * la salida normal de errores y se devuelve una imagen oscura de tamaño 10
+     * x 10.
+     *
+     * @param file El archivo de la imagen
+     * @param factor El factor de submuestreo, 1 para leer todos los pixeles
+     * @return La imagen leída
+     */
+    static BufferedImage loadSubsampled(File file, int factor) {
+        if (factor <= 1) {
+            return loadImage(file);
+        }
+        try {
+            return decodeSubsampled(file, factor);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return new BufferedImage(10, 10, 1);
+        }
+    }
+
+    /**
+     * Decodifica una imagen desde un archivo leyendo uno de cada
+     * {@code factor} pixeles en cada eje, lanzando los errores en lugar de
+     * imprimirlos
+     *
+     * @param file El archivo de la imagen
+     * @param factor El factor de submuestreo, 1 para leer todos los pixeles
+     * @return La imagen leída
+     * @throws IOException Si no se pudo leer el archivo o su formato no es
+     * reconocido
+     */
+    static BufferedImage decodeSubsampled(File file, int factor)
+            throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = CodecPool.reader(in, file, false, true);
+            if (reader == null) {
+                throw new IOException("Formato de imagen no reconocido: "
+                        + file);
+            }
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                return validImageType(reader.read(0, param));
+            } finally {
+                CodecPool.release(reader);
+            }
+        }
+    }
+
+    /**
+     * Recorta una región a los límites de una imagen
+     *
+     * @param region La región pedida
+     * @param width El ancho de la imagen
+     * @param height El alto de la imagen
+     * @return La parte de la región que está dentro de la imagen
+     * @throws IllegalArgumentException Si la región no toca la imagen
+     */
+    static Rectangle clipRegion(Rectangle region, int width, int height) {
+        Rectangle clipped = region.intersection(
+                new Rectangle(0, 0, width, height));
+        if (clipped.isEmpty()) {
+            throw new IllegalArgumentException("La región " + region
+                    + " está fuera de la imagen de " + width + "x" + height);
+        }
+        return clipped;
+    }
+
+    /**
+     * Carga solo una región de la imagen contenida en un archivo, sin
+     * decodificar ni guardar en memoria el resto de los pixeles. La región se
+     * recorta a los límites de la imagen.<br><br>
+     *
+     * De haber algún error en la lectura del archivo, se imprime el mensaje en
+     * la salida normal de errores y se devuelve null.
+     *
+     * @param file El archivo de la imagen
+     * @param region La región a leer, en pixeles de la imagen original
+     * @return Los pixeles de la región
+     * @throws IllegalArgumentException Si la región no toca la imagen
+     */
+    public static BufferedImage loadRegion(File file, Rectangle region) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = CodecPool.reader(in, file, false, true);
+            if (reader == null) {
+                throw new IOException("Formato de imagen no reconocido: "
+                        + file);
+            }
+            try {
+                Rectangle clipped = clipRegion(region, reader.getWidth(0),
+                        reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(clipped);
+                return validImageType(reader.read(0, param));
+            } finally {
+                CodecPool.release(reader);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Abre un recorrido por teselas de la imagen contenida en un archivo. Un
+     * solo lector se usa para todas las teselas, por lo que el recorrido debe
+     * cerrarse al terminar.<br><br>
+     *
+     * De haber algún error al abrir el archivo, se imprime el mensaje en la
+     * salida normal de errores y se devuelve null.
+     *
+     * @param file El archivo de la imagen
+     * @param tileWidth El ancho de cada tesela
+     * @param tileHeight El alto de cada tesela
+     * @return El recorrido por teselas
+     * @see ImageTiles
+     */
+    public static ImageTiles tiles(File file, int tileWidth, int tileHeight) {
+        ImageInputStream in = null;
+        ImageReader reader = null;
+        ImageTiles tiles = null;
+        try {
+            in = ImageIO.createImageInputStream(file);
+            reader = CodecPool.reader(in, file, false, true);
+            if (reader == null) {
+                throw new IOException("Formato de imagen no reconocido: "
+                        + file);
+            }
+            tiles = new ImageTiles(in, reader, tileWidth, tileHeight);
+            return tiles;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return null;
+        } finally {
+            if (tiles == null) {
+                CodecPool.release(reader);
+                close(in);
+            }
+        }
+    }
+
+    private static void close(ImageInputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
     /**
      * Escribe una imagen en un archivo
      *
@@ -140,49 +460,306 @@ public class ImageLoader {
      * @param file El archivo en el que escribir la imagen
      */
     public static void writeImage(BufferedImage image, BaseFile file) {
+        writeImage(image, file, null);
+    }
+
+    /**
+     * Escribe una imagen en un archivo con las opciones de codificación
+     * indicadas
+     *
+     * @param image La imagen a escribir
+     * @param file El archivo en el que escribir la imagen
+     * @param options Las opciones de codificación o null para usar las del
+     * escritor
+     */
+    public static void writeImage(BufferedImage image, BaseFile file,
+            EncoderOptions options) {
         try {
 
-            ImageIO.write(image, file.getSuffix().substring(1), file);
+            encode(image, file, options);
+
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Codifica una imagen directamente en un stream, sin archivos temporales.
+     * El stream no se cierra al terminar, así que puede ser un socket o la
+     * entrada de un archivo comprimido
+     *
+     * @param image La imagen a escribir
+     * @param format El nombre o el sufijo del formato, como "png" o "jpg"
+     * @param out El stream en el que escribir
+     * @param options Las opciones de codificación o null para usar las del
+     * escritor
+     * @throws IOException Si no se pudo escribir o no hay un escritor para el
+     * formato
+     */
+    public static void writeImage(BufferedImage image, String format,
+            OutputStream out, EncoderOptions options) throws IOException {
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            encode(image, format, stream, options);
+        }
+        out.flush();
+    }
+
+    /**
+     * Codifica una imagen directamente en un canal, sin archivos temporales.
+     * El canal no se cierra al terminar
+     *
+     * @param image La imagen a escribir
+     * @param format El nombre o el sufijo del formato, como "png" o "jpg"
+     * @param channel El canal en el que escribir
+     * @param options Las opciones de codificación o null para usar las del
+     * escritor
+     * @throws IOException Si no se pudo escribir o no hay un escritor para el
+     * formato
+     */
+    public static void writeImage(BufferedImage image, String format,
+            WritableByteChannel channel, EncoderOptions options)
+            throws IOException {
+        writeImage(image, format, Channels.newOutputStream(channel), options);
+    }
 
+    /**
+     * Escribe varios cuadros en un archivo con formato animado, como gif,
+     * uno por uno a medida que el iterador los entrega, así no hace falta
+     * tenerlos todos en memoria. La animación se repite indefinidamente
+     *
+     * @param frames Los cuadros a escribir
+     * @param file El archivo en el que escribir
+     */
+    public static void writeFrames(Iterator<ImageFrames.Frame> frames,
+            BaseFile file) {
+        try {
+            String format = file.getSuffix().substring(1);
+            ImageFrames.Frame first = firstFrame(frames);
+            ImageWriter writer = sequenceWriter(first, format);
+            try {
+                replace(file, out -> encodeFrames(writer, first, frames, out));
+            } finally {
+                CodecPool.release(writer);
+            }
         } catch (IOException ex) {
             ex.printStackTrace(System.err);
         }
     }
 
+    /**
+     * Escribe varios cuadros en un stream con un formato animado, como gif,
+     * uno por uno a medida que el iterador los entrega. La animación se
+     * repite indefinidamente. El stream no se cierra al terminar
+     *
+     * @param frames Los cuadros a escribir
+     * @param format El nombre o el sufijo del formato
+     * @param out El stream en el que escribir
+     * @throws IOException Si no se pudo escribir o no hay un escritor capaz
+     * de escribir varias imagenes en ese formato
+     */
+    public static void writeFrames(Iterator<ImageFrames.Frame> frames,
+            String format, OutputStream out) throws IOException {
+        ImageFrames.Frame first = firstFrame(frames);
+        ImageWriter writer = sequenceWriter(first, format);
+        try (ImageOutputStream stream = new MemoryCacheImageOutputStream(out)) {
+            encodeFrames(writer, first, frames, stream);
+        } finally {
+            CodecPool.release(writer);
+        }
+        out.flush();
+    }
+
+    private static ImageFrames.Frame firstFrame(
+            Iterator<ImageFrames.Frame> frames) throws IOException {
+        if (!frames.hasNext()) {
+            throw new IOException("No hay cuadros para escribir");
+        }
+        return frames.next();
+    }
+
+    private static ImageWriter sequenceWriter(ImageFrames.Frame frame,
+            String format) throws IOException {
+        ImageWriter writer = CodecPool.writer(frame.getImage(), format);
+        if (writer == null || !writer.canWriteSequence()) {
+            CodecPool.release(writer);
+            throw new IOException("No hay un escritor de animaciones para el "
+                    + "formato " + format);
+        }
+        return writer;
+    }
+
+    private static void encodeFrames(ImageWriter writer,
+            ImageFrames.Frame first, Iterator<ImageFrames.Frame> frames,
+            ImageOutputStream out) throws IOException {
+        writer.setOutput(out);
+        writer.prepareWriteSequence(null);
+        ImageFrames.Frame frame = first;
+        while (frame != null) {
+            BufferedImage image = frame.getImage();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata metadata = writer.getDefaultImageMetadata(
+                    ImageTypeSpecifier.createFromRenderedImage(image), param);
+            ImageFrames.fillMetadata(metadata, frame, frame == first);
+            writer.writeToSequence(new IIOImage(image, null, metadata), param);
+            frame = frames.hasNext() ? frames.next() : null;
+        }
+        writer.endWriteSequence();
+    }
+
+    /**
+     * Escribe una imagen en un archivo en el formato que indica su sufijo,
+     * lanzando los errores en lugar de imprimirlos
+     *
+     * @param image La imagen a escribir
+     * @param file El archivo en el que escribir la imagen
+     * @throws IOException Si no se pudo escribir o no hay un escritor para el
+     * formato del archivo
+     */
+    static void encode(BufferedImage image, BaseFile file) throws IOException {
+        encode(image, file, null);
+    }
+
+    /**
+     * Escribe una imagen en un archivo en el formato que indica su sufijo y
+     * con las opciones indicadas, lanzando los errores en lugar de
+     * imprimirlos
+     *
+     * @param image La imagen a escribir
+     * @param file El archivo en el que escribir la imagen
+     * @param options Las opciones de codificación o null para usar las del
+     * escritor
+     * @throws IOException Si no se pudo escribir o no hay un escritor para el
+     * formato del archivo
+     */
+    static void encode(BufferedImage image, BaseFile file,
+            EncoderOptions options) throws IOException {
+        String format = file.getSuffix().substring(1);
+        ImageWriter writer = writer(image, format);
+        try {
+            replace(file, out -> encode(writer, image, format, out, options));
+        } finally {
+            CodecPool.release(writer);
+        }
+    }
+
+    private static void encode(BufferedImage image, String format,
+            ImageOutputStream out, EncoderOptions options) throws IOException {
+        ImageWriter writer = writer(image, format);
+        try {
+            encode(writer, image, format, out, options);
+        } finally {
+            CodecPool.release(writer);
+        }
+    }
+
+    private static ImageWriter writer(BufferedImage image, String format)
+            throws IOException {
+        ImageWriter writer = CodecPool.writer(image, format);
+        if (writer == null) {
+            throw new IOException("No hay un escritor de imagenes para el "
+                    + "formato " + format);
+        }
+        return writer;
+    }
+
+    private static void encode(ImageWriter writer, BufferedImage image,
+            String format, ImageOutputStream out, EncoderOptions options)
+            throws IOException {
+        writer.setOutput(out);
+        if (options == null) {
+            writer.write(image);
+            return;
+        }
+        ImageWriteParam param = options.toParam(writer, format);
+        IIOMetadata metadata = options.toMetadata(writer,
+                ImageTypeSpecifier.createFromRenderedImage(image), param);
+        writer.write(null, new IIOImage(image, null, metadata), param);
+    }
+
+    /**
+     * Escribe en un archivo temporal junto al archivo indicado y, solo si la
+     * escritura termina bien, lo mueve a su lugar. Así un error al codificar
+     * nunca deja el archivo original vacío o a medio escribir
+     *
+     * @param file El archivo a reemplazar
+     * @param encoding Lo que escribe en el archivo temporal
+     * @throws IOException Si no se pudo escribir o mover el archivo
+     */
+    private static void replace(BaseFile file, Encoding encoding)
+            throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = target.resolveSibling("." + target.getFileName() + "-"
+                + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + ".tmp");
+        try {
+            try (ImageOutputStream out
+                    = ImageIO.createImageOutputStream(temp.toFile())) {
+                encoding.encode(out);
+            }
+            publish(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+            ImageHeader.invalidate(file);
+        }
+    }
+
+    /**
+     * Mueve un archivo terminado de escribir a su lugar definitivo,
+     * reemplazando el que hubiera, de forma atómica si el sistema de
+     * archivos lo permite
+     *
+     * @param temp El archivo escrito
+     * @param target El lugar definitivo
+     * @throws IOException Si no se pudo mover
+     */
+    static void publish(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Escritura de una imagen en un stream de imagen
+     */
+    private interface Encoding {
+
+        void encode(ImageOutputStream out) throws IOException;
+
+    }
+
     /**
      * Obtiene el tamaño de la imagen contenida en un archivo sin necesidad de
-     * cargar la imagen completa, leyendo las cabeceras del archivo
+     * cargar la imagen completa, leyendo las cabeceras del archivo. Las
+     * cabeceras se guardan en caché mientras el archivo no cambie
      *
+     * @see ImageHeader
      * @param image El archivo de imagen
      * @return El tamaño de la imagen o un tamaño 0 x 0 si no lo encuentra
      */
     public static Dimension getSize(File image) {
-        try (ImageInputStream in = ImageIO.createImageInputStream(image)) {
-            final Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
-            if (readers.hasNext()) {
-                ImageReader reader = readers.next();
-                try {
-                    reader.setInput(in);
-                    return new Dimension(reader.getWidth(0), reader.getHeight(0));
-                } finally {
-                    reader.dispose();
-                }
-            }
+        try {
+            return ImageHeader.of(image).getSize();
         } catch (IOException ex) {
             ex.printStackTrace(System.err);
         }
         return new Dimension(0, 0);
     }
-    
+
     /**
      * Rota una imagen la cantidad de grados especificada en la dirección de
-     * las agujas del reloj
+     * las agujas del reloj. Si los grados son múltiplo de 90 los pixeles se
+     * copian a su nueva posición sin interpolar
      * 
      * @param image La imagen a rotar
      * @param degres Los grados a rotar la imagen
      * @return La imagén rotada
      */
     public static BufferedImage rotate(BufferedImage image, int degres) {
+        if (degres % 90 == 0) {
+            return Orientation.forRotation(degres).apply(image);
+        }
         final double rads = Math.toRadians(degres);
         final double sin = Math.abs(Math.sin(rads));
         final double cos = Math.abs(Math.cos(rads));
@@ -197,4 +774,247 @@ public class ImageLoader {
         rotateOp.filter(image,rotatedImage);
         return rotatedImage;
     }
+
+    /**
+     * Aplica un filtro de convolución separable a una imagen: primero el
+     * núcleo horizontal y luego el vertical. Los bordes se extienden
+     * repitiendo el último pixel. Las filas se reparten entre varios hilos
+     *
+     * @param image La imagen a filtrar
+     * @param kernelX Los pesos horizontales, de largo impar y centrados
+     * @param kernelY Los pesos verticales, de largo impar y centrados
+     * @return Una imagen nueva con el filtro aplicado
+     * @throws IllegalArgumentException Si algún núcleo no tiene largo impar
+     */
+    public static BufferedImage convolve(BufferedImage image, float[] kernelX,
+            float[] kernelY) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return Rasters.toImage(Convolution.separable(
+                Convolution.source(image), width, height, kernelX, kernelY),
+                width, height, Rasters.resultType(image));
+    }
+
+    /**
+     * Desenfoca una imagen con un filtro gaussiano. A partir de un sigma de
+     * 4 el filtro se aproxima con tres desenfoques de caja, cuyo costo no
+     * depende del sigma
+     *
+     * @param image La imagen a desenfocar
+     * @param sigma La desviación estándar del filtro, en pixeles
+     * @return Una imagen nueva desenfocada o la misma si sigma no es positivo
+     */
+    public static BufferedImage gaussianBlur(BufferedImage image,
+            double sigma) {
+        if (sigma <= 0) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return Rasters.toImage(Convolution.gaussianBlur(
+                Convolution.source(image), width, height, sigma),
+                width, height, Rasters.resultType(image));
+    }
+
+    /**
+     * Desenfoca una imagen promediando cada pixel con los que lo rodean en un
+     * cuadrado. El costo por pixel no depende del radio
+     *
+     * @param image La imagen a desenfocar
+     * @param radius La distancia máxima de los pixeles promediados
+     * @return Una imagen nueva desenfocada o la misma si el radio no es
+     * positivo
+     */
+    public static BufferedImage boxBlur(BufferedImage image, int radius) {
+        if (radius <= 0) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return Rasters.toImage(Convolution.boxBlur(Convolution.source(image),
+                width, height, new int[]{radius}),
+                width, height, Rasters.resultType(image));
+    }
+
+    /**
+     * Realza los bordes de una imagen con una máscara de enfoque: a cada
+     * pixel se le suma su diferencia con la versión desenfocada
+     *
+     * @param image La imagen a enfocar
+     * @param sigma El sigma del desenfoque con el que se compara
+     * @param amount Cuánto se suma de la diferencia, normalmente entre 0.5 y
+     * 2
+     * @return Una imagen nueva enfocada o la misma si sigma no es positivo
+     */
+    public static BufferedImage sharpen(BufferedImage image, double sigma,
+            double amount) {
+        if (sigma <= 0) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return Rasters.toImage(Convolution.sharpen(Convolution.source(image),
+                width, height, sigma, amount),
+                width, height, Rasters.resultType(image));
+    }
+
+    /**
+     * Detecta los bordes de una imagen con el operador de Sobel. El
+     * resultado es una imagen gris en la que los bordes más marcados son más
+     * claros
+     *
+     * @param image La imagen original
+     * @return Una imagen nueva con la intensidad de los bordes
+     */
+    public static BufferedImage detectEdges(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        return Rasters.toImage(Convolution.sobel(Convolution.source(image),
+                width, height), width, height, Rasters.resultType(image));
+    }
+
+    /**
+     * Refleja una imagen copiando sus pixeles, sin interpolar
+     *
+     * @param image La imagen a reflejar
+     * @param horizontal Si se refleja de izquierda a derecha; si no, de
+     * arriba a abajo
+     * @return La imagen reflejada
+     */
+    public static BufferedImage flip(BufferedImage image, boolean horizontal) {
+        return horizontal
+                ? Orientation.FLIP_HORIZONTAL.apply(image)
+                : Orientation.FLIP_VERTICAL.apply(image);
+    }
+
+    /**
+     * Obtiene la orientación indicada en los datos EXIF de un archivo de
+     * imagen, leyendo solo sus cabeceras
+     *
+     * @param image El archivo de imagen
+     * @return La orientación o Orientation.NORMAL si el archivo no la indica
+     * o no se pudo leer
+     */
+    public static Orientation getOrientation(File image) {
+        try {
+            return Orientation.fromExif(ExifReader.readOrientation(image));
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return Orientation.NORMAL;
+        }
+    }
+
+    /**
+     * Aplica una función a cada pixel de una imagen, modificando la misma
+     * imagen. Para los tipos de imagen más comunes se trabaja directamente
+     * sobre el arreglo de pixeles sin crear objetos por pixel
+     *
+     * @param image La imagen a modificar
+     * @param kernel La función que calcula el nuevo color de cada pixel
+     * @param parallel Si se reparten las filas de la imagen entre varios
+     * hilos
+     */
+    public static void applyKernel(BufferedImage image, PixelKernel kernel,
+            boolean parallel) {
+        Rasters.apply(image, kernel, parallel);
+    }
+
+    /**
+     * Pinta en una imagen dividiéndola en teselas que se pintan en paralelo.
+     * Cada tesela recibe sus propios graficos, recortados a la tesela, y la
+     * función pinta usando las coordenadas de la imagen completa. La función
+     * se ejecuta una vez por tesela y desde varios hilos a la vez; puede usar
+     * {@code g.getClipBounds()} para calcular solo lo que cae en su tesela.
+     * Con antialiasing, algunos pixeles de las figuras que cruzan el borde de
+     * una tesela pueden quedar levemente distintos que al pintar sin recortar
+     *
+     * @param image La imagen en la que pintar
+     * @param painter La función que pinta en los graficos de cada tesela
+     * @param tileWidth El ancho de cada tesela
+     * @param tileHeight El alto de cada tesela
+     * @throws IllegalArgumentException Si el tamaño de las teselas no es
+     * positivo
+     */
+    public static void paintTiles(BufferedImage image, Painter painter,
+            int tileWidth, int tileHeight) {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("Tamaño de tesela no válido: "
+                    + tileWidth + "x" + tileHeight);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int columns = (width + tileWidth - 1) / tileWidth;
+        int rows = (height + tileHeight - 1) / tileHeight;
+        Bands.run(columns * rows, tileWidth * tileHeight, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                int x = i % columns * tileWidth;
+                int y = i / columns * tileHeight;
+                Graphics2D g = image.createGraphics();
+                try {
+                    g.clipRect(x, y, Math.min(tileWidth, width - x),
+                            Math.min(tileHeight, height - y));
+                    painter.paint(g);
+                } finally {
+                    g.dispose();
+                }
+            }
+        });
+    }
+
+    /**
+     * Carga una imagen en segundo plano entregando la imagen a medio
+     * decodificar mientras avanza, como mucho una vez por intervalo. Las
+     * funciones se ejecutan en el hilo de la carga
+     *
+     * @see ProgressiveLoad
+     * @param file El archivo de la imagen
+     * @param interval El tiempo mínimo entre dos entregas, en milisegundos
+     * @param onUpdate La función que recibe la imagen a medio decodificar.
+     * Puede ser null
+     * @param onComplete La función que recibe la imagen completa, o null si
+     * la carga se canceló o falló. Puede ser null
+     * @return La carga, que permite esperarla o cancelarla
+     */
+    public static ProgressiveLoad loadProgressive(File file, long interval,
+            Consumer<BufferedImage> onUpdate,
+            Consumer<BufferedImage> onComplete) {
+        return new ProgressiveLoad(file, interval, onUpdate, onComplete)
+                .start();
+    }
+
+    /**
+     * Abre un archivo para recorrer sus imagenes una por una, como los
+     * cuadros de un gif animado. El recorrido debe cerrarse al terminar.<br>
+     * De haber algún error al abrir el archivo, se imprime el mensaje en la
+     * salida normal de errores y se devuelve null
+     *
+     * @see ImageFrames
+     * @param file El archivo de imagen
+     * @param cacheSize La cantidad de cuadros decodificados que se guardan
+     * @return El recorrido de cuadros o null si no se pudo abrir el archivo
+     */
+    public static ImageFrames frames(File file, int cacheSize) {
+        ImageInputStream in = null;
+        ImageReader reader = null;
+        ImageFrames frames = null;
+        try {
+            in = ImageIO.createImageInputStream(file);
+            reader = CodecPool.reader(in, file, false, false);
+            if (reader == null) {
+                throw new IOException("Formato de imagen no reconocido: "
+                        + file);
+            }
+            frames = new ImageFrames(in, reader, cacheSize);
+            return frames;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return null;
+        } finally {
+            if (frames == null) {
+                CodecPool.release(reader);
+                close(in);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,575 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Pirámide de resoluciones de una imagen guardada en disco, para mostrar
+ * imagenes enormes con zoom sin decodificar nunca la imagen completa.
+ * <p>
+ * El nivel 0 es la imagen original y cada nivel siguiente mide la mitad del
+ * anterior, hasta que un nivel cabe en una sola tesela. Cada nivel se guarda
+ * en teselas cuadradas de tamaño fijo, en un subdirectorio por nivel con un
+ * archivo por tesela llamado {@code columna_fila.formato}. Los datos de la
+ * pirámide se guardan en {@value #DESCRIPTOR}, que se escribe al final; un
+ * directorio sin ese archivo no contiene una pirámide completa.
+ * </p>
+ * <p>
+ * La pirámide se construye en una sola pasada: el original se decodifica por
+ * bandas horizontales con lectura por regiones, cada banda se corta en
+ * teselas y se reduce a la mitad para alimentar al nivel siguiente, que
+ * guarda sus filas hasta completar una fila de teselas. En memoria solo hay
+ * una banda del original y una fila de teselas por nivel
+ * </p>
+ *
+ * <pre>
+ * ImagePyramid pyramid = imageFile.pyramid(dir);
+ * for (ImagePyramid.Tile tile : pyramid.tilesFor(viewport, 0.125)) {
+ *     g.drawImage(tile.getImage(), ...);
+ * }
+ * </pre>
+ *
+ * @author Angel
+ */
+public class ImagePyramid {
+
+    /**
+     * El nombre del archivo con los datos de la pirámide
+     */
+    public static final String DESCRIPTOR = "pyramid.properties";
+
+    /**
+     * La cantidad máxima de pixeles del original que se decodifican de una
+     * vez. Algunos lectores, como los de jpeg y png, recorren el archivo
+     * desde el principio en cada lectura por regiones, así que conviene leer
+     * pocas bandas grandes
+     */
+    static final int BAND_PIXELS = 16 * 1024 * 1024;
+
+    private final Path directory;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final String format;
+    private final String source;
+    private final long sourceModified;
+    private final long sourceLength;
+    private final Dimension[] levels;
+
+    private ImagePyramid(Path directory, int width, int height, int tileSize,
+            String format, String source, long sourceModified,
+            long sourceLength) {
+        this.directory = directory;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.format = format;
+        this.source = source;
+        this.sourceModified = sourceModified;
+        this.sourceLength = sourceLength;
+        this.levels = levelSizes(width, height, tileSize);
+    }
+
+    private static Dimension[] levelSizes(int width, int height,
+            int tileSize) {
+        List<Dimension> sizes = new ArrayList<>();
+        sizes.add(new Dimension(width, height));
+        while (width > tileSize || height > tileSize) {
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+            sizes.add(new Dimension(width, height));
+        }
+        return sizes.toArray(new Dimension[sizes.size()]);
+    }
+
+    /**
+     * Construye la pirámide de un archivo de imagen en un directorio,
+     * reemplazando la que hubiera
+     *
+     * @param source El archivo de imagen original
+     * @param directory El directorio donde guardar la pirámide
+     * @param tileSize El ancho y alto de las teselas. Debe ser par
+     * @param format El formato de las teselas, como "png" o "jpg"
+     * @param options Las opciones de codificación de las teselas o null para
+     * usar las del escritor
+     * @return La pirámide construida
+     * @throws IOException Si no se pudo leer el original o escribir las
+     * teselas
+     * @throws IllegalArgumentException Si el tamaño de tesela no es positivo
+     * y par
+     */
+    public static ImagePyramid build(File source, File directory,
+            int tileSize, String format, EncoderOptions options)
+            throws IOException {
+        if (tileSize < 2 || tileSize % 2 != 0) {
+            throw new IllegalArgumentException("Tamaño de tesela no válido: "
+                    + tileSize);
+        }
+        long modified = source.lastModified();
+        long length = source.length();
+        ImageHeader header = ImageHeader.of(source);
+        Path path = directory.toPath();
+        Files.createDirectories(path);
+        Files.deleteIfExists(path.resolve(DESCRIPTOR));
+        ImagePyramid pyramid = new ImagePyramid(path, header.getWidth(),
+                header.getHeight(), tileSize, format.toLowerCase(),
+                source.getAbsolutePath(), modified, length);
+        new Builder(pyramid, options).run(source);
+        pyramid.writeDescriptor();
+        return pyramid;
+    }
+
+    /**
+     * Abre una pirámide ya construida
+     *
+     * @param directory El directorio de la pirámide
+     * @return La pirámide
+     * @throws IOException Si el directorio no contiene una pirámide completa
+     */
+    public static ImagePyramid open(File directory) throws IOException {
+        Path path = directory.toPath();
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path.resolve(DESCRIPTOR))) {
+            properties.load(in);
+        }
+        try {
+            return new ImagePyramid(path,
+                    Integer.parseInt(properties.getProperty("width")),
+                    Integer.parseInt(properties.getProperty("height")),
+                    Integer.parseInt(properties.getProperty("tileSize")),
+                    properties.getProperty("format"),
+                    properties.getProperty("source"),
+                    Long.parseLong(properties.getProperty("sourceModified")),
+                    Long.parseLong(properties.getProperty("sourceLength")));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Descriptor de pirámide no válido: "
+                    + path.resolve(DESCRIPTOR), ex);
+        }
+    }
+
+    private void writeDescriptor() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("width", String.valueOf(this.width));
+        properties.setProperty("height", String.valueOf(this.height));
+        properties.setProperty("tileSize", String.valueOf(this.tileSize));
+        properties.setProperty("format", this.format);
+        properties.setProperty("levels", String.valueOf(this.levels.length));
+        properties.setProperty("source", this.source);
+        properties.setProperty("sourceModified",
+                String.valueOf(this.sourceModified));
+        properties.setProperty("sourceLength",
+                String.valueOf(this.sourceLength));
+        Path temp = this.directory.resolve(DESCRIPTOR + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "Piramide de " + this.source);
+        }
+        try {
+            Files.move(temp, this.directory.resolve(DESCRIPTOR),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temp, this.directory.resolve(DESCRIPTOR),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Determina si la pirámide se construyó a partir de un archivo tal como
+     * está ahora, comparando su ruta, su fecha de modificación y su tamaño
+     *
+     * @param source El archivo de imagen original
+     * @return Si la pirámide corresponde al archivo
+     */
+    public boolean isCurrent(File source) {
+        return source.getAbsolutePath().equals(this.source)
+                && source.lastModified() == this.sourceModified
+                && source.length() == this.sourceLength;
+    }
+
+    /**
+     * Devuelve el directorio de la pirámide
+     *
+     * @return El directorio
+     */
+    public File getDirectory() {
+        return this.directory.toFile();
+    }
+
+    /**
+     * Devuelve el ancho de la imagen original
+     *
+     * @return El ancho
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Devuelve el alto de la imagen original
+     *
+     * @return El alto
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Devuelve el ancho y alto de las teselas
+     *
+     * @return El tamaño de las teselas
+     */
+    public int getTileSize() {
+        return this.tileSize;
+    }
+
+    /**
+     * Devuelve el formato de las teselas
+     *
+     * @return El formato, como "png" o "jpg"
+     */
+    public String getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Devuelve la cantidad de niveles. El último nivel cabe en una tesela
+     *
+     * @return La cantidad de niveles
+     */
+    public int getLevelCount() {
+        return this.levels.length;
+    }
+
+    /**
+     * Devuelve el tamaño de la imagen en un nivel
+     *
+     * @param level El nivel, 0 para la imagen original
+     * @return El tamaño del nivel
+     */
+    public Dimension getLevelSize(int level) {
+        return new Dimension(this.levels[level]);
+    }
+
+    /**
+     * Devuelve la escala de un nivel respecto a la imagen original
+     *
+     * @param level El nivel
+     * @return La escala, 1 para el nivel 0, 0.5 para el 1, etc.
+     */
+    public double getScale(int level) {
+        return 1.0 / (1L << level);
+    }
+
+    /**
+     * Elige el nivel más pequeño que todavía tiene al menos la resolución
+     * pedida
+     *
+     * @param scale La escala a la que se quiere mostrar la imagen, como 0.25
+     * para mostrarla a un cuarto de su tamaño
+     * @return El nivel
+     */
+    public int levelFor(double scale) {
+        if (scale >= 1 || scale <= 0) {
+            return scale <= 0 ? this.levels.length - 1 : 0;
+        }
+        int level = (int) Math.floor(Math.log(1 / scale) / Math.log(2));
+        return Math.min(level, this.levels.length - 1);
+    }
+
+    /**
+     * Devuelve las teselas que cubren una región de la imagen vista a una
+     * escala, del nivel elegido por levelFor()
+     *
+     * @param viewport La región visible, en pixeles de la imagen original
+     * @param scale La escala a la que se muestra la imagen
+     * @return Las teselas que tocan la región, fila por fila. Vacía si la
+     * región no toca la imagen
+     */
+    public List<Tile> tilesFor(Rectangle viewport, double scale) {
+        int level = this.levelFor(scale);
+        Dimension size = this.levels[level];
+        double factor = this.getScale(level);
+        int left = Math.max(0, (int) Math.floor(viewport.getMinX() * factor));
+        int top = Math.max(0, (int) Math.floor(viewport.getMinY() * factor));
+        int right = Math.min(size.width,
+                (int) Math.ceil(viewport.getMaxX() * factor));
+        int bottom = Math.min(size.height,
+                (int) Math.ceil(viewport.getMaxY() * factor));
+        List<Tile> tiles = new ArrayList<>();
+        if (left >= right || top >= bottom) {
+            return tiles;
+        }
+        for (int row = top / this.tileSize;
+                row <= (bottom - 1) / this.tileSize; row++) {
+            for (int column = left / this.tileSize;
+                    column <= (right - 1) / this.tileSize; column++) {
+                tiles.add(this.getTile(level, column, row));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Devuelve una tesela de un nivel
+     *
+     * @param level El nivel
+     * @param column La columna de la tesela, empezando en 0
+     * @param row La fila de la tesela, empezando en 0
+     * @return La tesela
+     */
+    public Tile getTile(int level, int column, int row) {
+        Dimension size = this.levels[level];
+        Rectangle bounds = new Rectangle(column * this.tileSize,
+                row * this.tileSize, this.tileSize, this.tileSize)
+                .intersection(new Rectangle(size));
+        return new Tile(level, column, row, bounds, this.tilePath(level,
+                column, row).toFile());
+    }
+
+    private Path tilePath(int level, int column, int row) {
+        return this.directory.resolve(String.valueOf(level))
+                .resolve(column + "_" + row + "." + this.format);
+    }
+
+    /**
+     * Una tesela de un nivel de la pirámide
+     */
+    public class Tile {
+
+        private final int level;
+        private final int column;
+        private final int row;
+        private final Rectangle bounds;
+        private final File file;
+
+        Tile(int level, int column, int row, Rectangle bounds, File file) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+            this.bounds = bounds;
+            this.file = file;
+        }
+
+        /**
+         * Devuelve el nivel de la tesela
+         *
+         * @return El nivel
+         */
+        public int getLevel() {
+            return this.level;
+        }
+
+        /**
+         * Devuelve la columna de la tesela, empezando en 0
+         *
+         * @return La columna
+         */
+        public int getColumn() {
+            return this.column;
+        }
+
+        /**
+         * Devuelve la fila de la tesela, empezando en 0
+         *
+         * @return La fila
+         */
+        public int getRow() {
+            return this.row;
+        }
+
+        /**
+         * Devuelve la región que ocupa la tesela, en pixeles de su nivel
+         *
+         * @return La región de la tesela
+         */
+        public Rectangle getBounds() {
+            return new Rectangle(this.bounds);
+        }
+
+        /**
+         * Devuelve la región aproximada que ocupa la tesela, en pixeles de la
+         * imagen original
+         *
+         * @return La región en la imagen original
+         */
+        public Rectangle getSourceBounds() {
+            int factor = 1 << this.level;
+            return new Rectangle(this.bounds.x * factor,
+                    this.bounds.y * factor, this.bounds.width * factor,
+                    this.bounds.height * factor)
+                    .intersection(new Rectangle(ImagePyramid.this.width,
+                            ImagePyramid.this.height));
+        }
+
+        /**
+         * Devuelve el archivo de la tesela
+         *
+         * @return El archivo
+         */
+        public File getFile() {
+            return this.file;
+        }
+
+        /**
+         * Lee la imagen de la tesela
+         *
+         * @return La imagen de la tesela
+         */
+        public BufferedImage getImage() {
+            return ImageLoader.loadImage(this.file);
+        }
+
+    }
+
+    /**
+     * Recorre el original por bandas y escribe todas las teselas
+     */
+    private static class Builder {
+
+        private final ImagePyramid pyramid;
+        private final EncoderOptions options;
+        private final int type;
+        private final int[][] pending;
+        private final int[] pendingRows;
+        private final int[] nextRow;
+
+        Builder(ImagePyramid pyramid, EncoderOptions options) {
+            this.pyramid = pyramid;
+            this.options = options;
+            this.type = pyramid.format.startsWith("jp")
+                    || pyramid.format.equals("bmp")
+                    ? BufferedImage.TYPE_INT_RGB
+                    : BufferedImage.TYPE_INT_ARGB;
+            int count = pyramid.levels.length;
+            this.pending = new int[count][];
+            this.pendingRows = new int[count];
+            this.nextRow = new int[count];
+            for (int level = 1; level < count; level++) {
+                this.pending[level] = new int[pyramid.levels[level].width
+                        * pyramid.tileSize];
+            }
+        }
+
+        void run(File source) throws IOException {
+            int width = this.pyramid.width;
+            int tileSize = this.pyramid.tileSize;
+            int bandRows = Math.max(tileSize,
+                    BAND_PIXELS / width / tileSize * tileSize);
+            ImageTiles bands = ImageLoader.tiles(source, width, bandRows);
+            if (bands == null) {
+                throw new IOException("No se pudo leer " + source);
+            }
+            try {
+                while (bands.hasNext()) {
+                    BufferedImage band = bands.next().getImage();
+                    int[] argb = Rasters.toArgb(band);
+                    for (int y = 0; y < band.getHeight(); y += tileSize) {
+                        int rows = Math.min(tileSize, band.getHeight() - y);
+                        this.emit(0, Arrays.copyOfRange(argb, y * width,
+                                (y + rows) * width), rows);
+                    }
+                }
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            } finally {
+                bands.close();
+            }
+            for (int level = 1; level < this.pending.length; level++) {
+                if (this.pendingRows[level] > 0) {
+                    this.emit(level, this.pending[level],
+                            this.pendingRows[level]);
+                }
+            }
+        }
+
+        /**
+         * Escribe una fila de teselas de un nivel y pasa su mitad al nivel
+         * siguiente
+         */
+        private void emit(int level, int[] pixels, int rows)
+                throws IOException {
+            this.write(level, this.nextRow[level]++, pixels, rows);
+            this.pendingRows[level] = 0;
+            if (level + 1 == this.pending.length) {
+                return;
+            }
+            Dimension size = this.pyramid.levels[level];
+            Dimension next = this.pyramid.levels[level + 1];
+            int halfRows = size.height == 1 ? 1 : rows / 2;
+            if (halfRows == 0) {
+                return;
+            }
+            int[] half = Resampler.halve(pixels, size.width, rows,
+                    next.width, halfRows);
+            int[] buffer = this.pending[level + 1];
+            System.arraycopy(half, 0, buffer,
+                    this.pendingRows[level + 1] * next.width, half.length);
+            this.pendingRows[level + 1] += halfRows;
+            if (this.pendingRows[level + 1] == this.pyramid.tileSize) {
+                this.emit(level + 1, buffer, this.pyramid.tileSize);
+            }
+        }
+
+        private void write(int level, int row, int[] pixels, int rows)
+                throws IOException {
+            int width = this.pyramid.levels[level].width;
+            int tileSize = this.pyramid.tileSize;
+            int columns = (width + tileSize - 1) / tileSize;
+            Files.createDirectories(this.pyramid.directory
+                    .resolve(String.valueOf(level)));
+            try {
+                Bands.run(columns, tileSize * rows, (from, to) -> {
+                    for (int column = from; column < to; column++) {
+                        this.writeTile(level, column, row, pixels, width,
+                                rows);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        private void writeTile(int level, int column, int row, int[] pixels,
+                int width, int rows) {
+            int tileSize = this.pyramid.tileSize;
+            int x = column * tileSize;
+            int tileWidth = Math.min(tileSize, width - x);
+            int[] tile = new int[tileWidth * rows];
+            for (int y = 0; y < rows; y++) {
+                System.arraycopy(pixels, y * width + x, tile, y * tileWidth,
+                        tileWidth);
+            }
+            BufferedImage image = Rasters.toImage(tile, tileWidth, rows,
+                    this.type);
+            Path path = this.pyramid.tilePath(level, column, row);
+            try (OutputStream out = new BufferedOutputStream(
+                    Files.newOutputStream(path))) {
+                ImageLoader.writeImage(image, this.pyramid.format, out,
+                        this.options);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Recorre una imagen por bloques rectangulares (teselas) sin cargarla
+ * completa en memoria.
+ * <p>
+ * Cada tesela se decodifica por separado indicando al lector la región que
+ * debe leer, y el mismo lector y el mismo stream se reutilizan para todas las
+ * teselas. Las teselas se entregan por filas, de izquierda a derecha y de
+ * arriba a abajo; las de la última fila y la última columna pueden ser más
+ * pequeñas.
+ * </p>
+ * Algunos formatos, como jpg o png, solo se pueden decodificar en orden, por
+ * lo que leer una tesela obliga a recorrer las filas anteriores. En esos
+ * casos conviene usar teselas del ancho completo de la imagen. Los errores de
+ * lectura durante el recorrido se lanzan como UncheckedIOException
+ *
+ * @author Angel
+ */
+public class ImageTiles implements Iterator<ImageTiles.Tile>, Closeable {
+
+    private final ImageInputStream in;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    private final int tileWidth;
+    private final int tileHeight;
+    private int column = 0;
+    private int row = 0;
+    private boolean closed = false;
+
+    /**
+     * Crea el recorrido a partir de un lector con su stream ya asignado.
+     * ImageLoader.tiles() es quien lo crea
+     */
+    ImageTiles(ImageInputStream in, ImageReader reader, int tileWidth,
+            int tileHeight) throws IOException {
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("Tamaño de tesela no válido: "
+                    + tileWidth + "x" + tileHeight);
+        }
+        this.in = in;
+        this.reader = reader;
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+        this.tileWidth = Math.min(tileWidth, this.width);
+        this.tileHeight = Math.min(tileHeight, this.height);
+    }
+
+    /**
+     * Devuelve el ancho de la imagen completa
+     *
+     * @return El ancho de la imagen
+     */
+    public int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * Devuelve el alto de la imagen completa
+     *
+     * @return El alto de la imagen
+     */
+    public int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * Devuelve la cantidad de columnas de teselas
+     *
+     * @return La cantidad de columnas
+     */
+    public int getColumns() {
+        return (this.width + this.tileWidth - 1) / this.tileWidth;
+    }
+
+    /**
+     * Devuelve la cantidad de filas de teselas
+     *
+     * @return La cantidad de filas
+     */
+    public int getRows() {
+        return (this.height + this.tileHeight - 1) / this.tileHeight;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !this.closed && this.row < this.getRows();
+    }
+
+    @Override
+    public Tile next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Rectangle bounds = new Rectangle(this.column * this.tileWidth,
+                this.row * this.tileHeight, this.tileWidth, this.tileHeight);
+        bounds = bounds.intersection(new Rectangle(this.width, this.height));
+        Tile tile = new Tile(this.column, this.row, bounds,
+                this.read(bounds));
+        if (++this.column == this.getColumns()) {
+            this.column = 0;
+            this.row++;
+        }
+        return tile;
+    }
+
+    /**
+     * Lee una región cualquiera de la imagen con el mismo lector. La región
+     * se recorta a los límites de la imagen
+     *
+     * @param region La región a leer
+     * @return Los pixeles de la región
+     * @throws IllegalArgumentException Si la región no toca la imagen
+     * @throws IllegalStateException Si el recorrido está cerrado
+     */
+    public synchronized BufferedImage read(Rectangle region) {
+        if (this.closed) {
+            throw new IllegalStateException("El recorrido está cerrado");
+        }
+        Rectangle clipped = ImageLoader.clipRegion(region, this.width,
+                this.height);
+        ImageReadParam param = this.reader.getDefaultReadParam();
+        param.setSourceRegion(clipped);
+        try {
+            return ImageLoader.validImageType(this.reader.read(0, param));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Libera el lector y cierra el archivo
+     */
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        CodecPool.release(this.reader);
+        try {
+            this.in.close();
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Un bloque de la imagen con su posición
+     */
+    public static class Tile {
+
+        private final int column;
+        private final int row;
+        private final Rectangle bounds;
+        private final BufferedImage image;
+
+        Tile(int column, int row, Rectangle bounds, BufferedImage image) {
+            this.column = column;
+            this.row = row;
+            this.bounds = bounds;
+            this.image = image;
+        }
+
+        /**
+         * Devuelve la columna de la tesela, empezando en 0
+         *
+         * @return La columna
+         */
+        public int getColumn() {
+            return this.column;
+        }
+
+        /**
+         * Devuelve la fila de la tesela, empezando en 0
+         *
+         * @return La fila
+         */
+        public int getRow() {
+            return this.row;
+        }
+
+        /**
+         * Devuelve la región de la imagen completa que ocupa la tesela
+         *
+         * @return La posición y el tamaño de la tesela en pixeles
+         */
+        public Rectangle getBounds() {
+            return new Rectangle(this.bounds);
+        }
+
+        /**
+         * Devuelve los pixeles de la tesela
+         *
+         * @return La imagen de la tesela
+         */
+        public BufferedImage getImage() {
+            return this.image;
+        }
+
+    }
+
+}
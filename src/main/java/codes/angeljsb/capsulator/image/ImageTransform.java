@@ -0,0 +1,473 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.Dimension;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cadena de operaciones geométricas sobre la imagen de un ImageFile que se
+ * aplica de una sola vez.
+ * <p>
+ * Las operaciones solo se anotan al llamar a sus metodos. Al llamar a apply()
+ * todas se combinan en una sola transformación afín, la imagen se recorre una
+ * única vez para crear una sola imagen nueva y la capsula notifica un único
+ * cambio. Si la transformación es solo un cambio de tamaño se usa el
+ * Resampler con el filtro elegido.
+ * </p>
+ * Si la imagen todavía no está cargada, el archivo se decodifica con el mayor
+ * submuestreo que no pierda resolución para el tamaño final
+ *
+ * <pre>
+ * imageFile.transform().resizeToWidth(800).rotate(90).apply();
+ * </pre>
+ *
+ * @author Angel
+ */
+public class ImageTransform {
+
+    private final ImageFile imageFile;
+    private final List<Step> steps = new ArrayList<>();
+    private Resampler.Filter filter = null;
+
+    /**
+     * Crea una cadena vacía para un archivo de imagen
+     *
+     * @param imageFile El archivo cuya imagen se transforma
+     */
+    public ImageTransform(ImageFile imageFile) {
+        this.imageFile = imageFile;
+    }
+
+    /**
+     * Añade un cambio de tamaño. Si el ancho o el alto son negativos se
+     * mantiene la escala
+     *
+     * @param width El nuevo ancho
+     * @param height El nuevo alto
+     * @return Esta misma cadena
+     */
+    public ImageTransform resize(int width, int height) {
+        this.steps.add(new Step(Step.RESIZE, width, height));
+        return this;
+    }
+
+    /**
+     * Añade un cambio de tamaño al ancho indicado manteniendo la escala
+     *
+     * @param width El nuevo ancho
+     * @return Esta misma cadena
+     */
+    public ImageTransform resizeToWidth(int width) {
+        return this.resize(width, -1);
+    }
+
+    /**
+     * Añade un cambio de tamaño al alto indicado manteniendo la escala
+     *
+     * @param height El nuevo alto
+     * @return Esta misma cadena
+     */
+    public ImageTransform resizeToHeight(int height) {
+        return this.resize(-1, height);
+    }
+
+    /**
+     * Añade una rotación en la dirección de las agujas del reloj. El lienzo
+     * crece para contener la imagen rotada, igual que en ImageLoader.rotate()
+     *
+     * @param degrees Los grados a rotar
+     * @return Esta misma cadena
+     */
+    public ImageTransform rotate(int degrees) {
+        this.steps.add(new Step(Step.ROTATE, degrees));
+        return this;
+    }
+
+    /**
+     * Añade un reflejo de izquierda a derecha
+     *
+     * @return Esta misma cadena
+     */
+    public ImageTransform flipHorizontal() {
+        return this.orient(Orientation.FLIP_HORIZONTAL);
+    }
+
+    /**
+     * Añade un reflejo de arriba a abajo
+     *
+     * @return Esta misma cadena
+     */
+    public ImageTransform flipVertical() {
+        return this.orient(Orientation.FLIP_VERTICAL);
+    }
+
+    /**
+     * Añade un cambio de orientación
+     *
+     * @param orientation La orientación a aplicar
+     * @return Esta misma cadena
+     */
+    public ImageTransform orient(Orientation orientation) {
+        this.steps.add(new Step(Step.ORIENT, orientation.getExifValue()));
+        return this;
+    }
+
+    /**
+     * Añade el cambio de orientación que pone derecha la imagen según los
+     * datos EXIF del archivo. La orientación se lee al llamar a este metodo
+     *
+     * @return Esta misma cadena
+     */
+    public ImageTransform autoRotate() {
+        Orientation orientation = this.imageFile.getOrientation();
+        return orientation == Orientation.NORMAL
+                ? this
+                : this.orient(orientation);
+    }
+
+    /**
+     * Elige el filtro de interpolación. Con NEAREST las transformaciones
+     * generales usan el vecino más cercano, con LANCZOS interpolación bicúbica
+     * y con el resto interpolación lineal
+     *
+     * @param filter El filtro, o null para usar el predeterminado
+     * @return Esta misma cadena
+     */
+    public ImageTransform filter(Resampler.Filter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * Determina si la cadena no tiene operaciones
+     *
+     * @return Si no hay operaciones anotadas
+     */
+    public boolean isEmpty() {
+        return this.steps.isEmpty();
+    }
+
+    /**
+     * Devuelve una descripción de las operaciones anotadas, que es igual para
+     * dos cadenas con las mismas operaciones y el mismo filtro
+     *
+     * @return La descripción, como {@code resize(800,-1);rotate(90)}
+     */
+    public String describe() {
+        StringBuilder builder = new StringBuilder();
+        for (Step step : this.steps) {
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(step);
+        }
+        if (this.filter != null) {
+            builder.append(";filter(").append(this.filter).append(')');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Calcula el tamaño final de la imagen para un tamaño original
+     *
+     * @param width El ancho original
+     * @param height El alto original
+     * @return El tamaño después de aplicar todas las operaciones
+     */
+    public Dimension getSize(int width, int height) {
+        return this.plan(width, height).size;
+    }
+
+    /**
+     * Calcula la transformación afín que combina todas las operaciones para
+     * un tamaño original
+     *
+     * @param width El ancho original
+     * @param height El alto original
+     * @return La transformación de coordenadas originales a finales
+     */
+    public AffineTransform getTransform(int width, int height) {
+        return new AffineTransform(this.plan(width, height).transform);
+    }
+
+    /**
+     * Aplica las operaciones a la imagen del archivo y publica el resultado
+     * en su capsula con un único cambio. Si la cadena no tiene efecto no se
+     * hace nada. Si no se puede leer el archivo se imprime el error en la
+     * salida normal de errores y la capsula no cambia
+     */
+    public void apply() {
+        BufferedImage source;
+        Plan plan;
+        if (this.imageFile.isLoaded()) {
+            source = this.imageFile.getContent();
+            plan = this.plan(source.getWidth(), source.getHeight());
+        } else {
+            Dimension original = this.imageFile.getSizeFromFile();
+            if (original.width <= 0 || original.height <= 0) {
+                source = this.imageFile.get();
+                plan = this.plan(source.getWidth(), source.getHeight());
+            } else {
+                plan = this.plan(original.width, original.height);
+                if (plan.isIdentity()) {
+                    return;
+                }
+                try {
+                    source = ImageLoader.decodeSubsampled(
+                            this.imageFile.getBaseFile(), plan.subsampling());
+                } catch (IOException ex) {
+                    ex.printStackTrace(System.err);
+                    return;
+                }
+                plan.scaleSource(original, source);
+            }
+        }
+        if (plan.isIdentity()) {
+            return;
+        }
+        this.imageFile.getCapsule().editContent(this.render(source, plan));
+    }
+
+    /**
+     * Aplica las operaciones a la imagen guardada en el archivo, sin tocar la
+     * imagen contenida ni la capsula. Como en apply(), solo se decodifican
+     * los pixeles necesarios para el tamaño final
+     *
+     * @return La imagen resultante
+     * @throws IOException Si no se pudo leer el archivo
+     */
+    BufferedImage applyToFile() throws IOException {
+        File file = this.imageFile.getBaseFile();
+        ImageHeader header = ImageHeader.of(file);
+        Plan plan = this.plan(header.getWidth(), header.getHeight());
+        if (plan.isIdentity()) {
+            return ImageLoader.decodeSubsampled(file, 1);
+        }
+        BufferedImage source = ImageLoader.decodeSubsampled(file,
+                plan.subsampling());
+        plan.scaleSource(header.getSize(), source);
+        return this.render(source, plan);
+    }
+
+    /**
+     * Devuelve el archivo de imagen sobre el que se anotan las operaciones
+     *
+     * @return El archivo de imagen
+     */
+    ImageFile getImageFile() {
+        return this.imageFile;
+    }
+
+    /**
+     * Aplica las operaciones a una imagen cualquiera sin tocar el archivo
+     *
+     * @param image La imagen a transformar
+     * @return Una imagen nueva o la misma si la cadena no tiene efecto
+     */
+    public BufferedImage applyTo(BufferedImage image) {
+        Plan plan = this.plan(image.getWidth(), image.getHeight());
+        return plan.isIdentity() ? image : this.render(image, plan);
+    }
+
+    private BufferedImage render(BufferedImage source, Plan plan) {
+        Orientation orientation = plan.orientation(source);
+        if (orientation != null) {
+            return orientation.apply(source);
+        }
+        if (plan.isScale()) {
+            return Resampler.resize(source, plan.size.width,
+                    plan.size.height, this.filter);
+        }
+        BufferedImage result = new BufferedImage(plan.size.width,
+                plan.size.height, Rasters.resultType(source));
+        new AffineTransformOp(plan.transform, this.interpolation())
+                .filter(source, result);
+        return result;
+    }
+
+    private int interpolation() {
+        if (this.filter == Resampler.Filter.NEAREST) {
+            return AffineTransformOp.TYPE_NEAREST_NEIGHBOR;
+        }
+        if (this.filter == Resampler.Filter.LANCZOS) {
+            return AffineTransformOp.TYPE_BICUBIC;
+        }
+        return AffineTransformOp.TYPE_BILINEAR;
+    }
+
+    /**
+     * Recorre las operaciones calculando el tamaño de cada paso y acumulando
+     * la transformación
+     */
+    private Plan plan(int width, int height) {
+        Plan plan = new Plan(width, height);
+        for (Step step : this.steps) {
+            switch (step.kind) {
+                case Step.RESIZE:
+                    plan.resize(step.args[0], step.args[1]);
+                    break;
+                case Step.ROTATE:
+                    plan.rotate(step.args[0]);
+                    break;
+                case Step.ORIENT:
+                    plan.orient(Orientation.fromExif(step.args[0]));
+                    break;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Una operación anotada con sus argumentos
+     */
+    private static class Step {
+
+        static final String RESIZE = "resize";
+        static final String ROTATE = "rotate";
+        static final String ORIENT = "orient";
+
+        private final String kind;
+        private final int[] args;
+
+        Step(String kind, int... args) {
+            this.kind = kind;
+            this.args = args;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(this.kind).append('(');
+            for (int i = 0; i < this.args.length; i++) {
+                builder.append(i == 0 ? "" : ",").append(this.args[i]);
+            }
+            return builder.append(')').toString();
+        }
+
+    }
+
+    /**
+     * El resultado de combinar las operaciones para un tamaño original
+     */
+    private static class Plan {
+
+        private final int sourceWidth;
+        private final int sourceHeight;
+        private final AffineTransform transform = new AffineTransform();
+        private Dimension size;
+
+        Plan(int width, int height) {
+            this.sourceWidth = width;
+            this.sourceHeight = height;
+            this.size = new Dimension(width, height);
+        }
+
+        void resize(int width, int height) {
+            Dimension target = ImageLoader.targetSize(this.size.width,
+                    this.size.height, width, height);
+            this.transform.preConcatenate(AffineTransform.getScaleInstance(
+                    (double) target.width / this.size.width,
+                    (double) target.height / this.size.height));
+            this.size = target;
+        }
+
+        void rotate(int degrees) {
+            double rads = Math.toRadians(degrees);
+            double sin = Math.abs(Math.sin(rads));
+            double cos = Math.abs(Math.cos(rads));
+            int width = this.size.width;
+            int height = this.size.height;
+            int w = (int) Math.floor(width * cos + height * sin);
+            int h = (int) Math.floor(height * cos + width * sin);
+            AffineTransform step = new AffineTransform();
+            step.translate(w / 2, h / 2);
+            step.rotate(rads, 0, 0);
+            step.translate(-width / 2, -height / 2);
+            this.transform.preConcatenate(step);
+            this.size = new Dimension(w, h);
+        }
+
+        void orient(Orientation orientation) {
+            this.transform.preConcatenate(orientation.toTransform(
+                    this.size.width, this.size.height));
+            if (orientation.isTransposed()) {
+                this.size = new Dimension(this.size.height, this.size.width);
+            }
+        }
+
+        /**
+         * Si la transformación solo gira en ángulos rectos o refleja la
+         * imagen, sin cambiar su tamaño, devuelve la orientación equivalente
+         */
+        Orientation orientation(BufferedImage source) {
+            Orientation orientation = Orientation.fromMatrix(
+                    this.transform.getScaleX(), this.transform.getShearX(),
+                    this.transform.getShearY(), this.transform.getScaleY());
+            if (orientation == null) {
+                return null;
+            }
+            int width = orientation.isTransposed()
+                    ? source.getHeight()
+                    : source.getWidth();
+            int height = orientation.isTransposed()
+                    ? source.getWidth()
+                    : source.getHeight();
+            return width == this.size.width && height == this.size.height
+                    ? orientation
+                    : null;
+        }
+
+        boolean isIdentity() {
+            return this.transform.isIdentity()
+                    && this.size.width == this.sourceWidth
+                    && this.size.height == this.sourceHeight;
+        }
+
+        /**
+         * Determina si la transformación solo cambia el tamaño, sin rotar ni
+         * desplazar
+         */
+        boolean isScale() {
+            return this.transform.getShearX() == 0
+                    && this.transform.getShearY() == 0
+                    && this.transform.getScaleX() > 0
+                    && this.transform.getScaleY() > 0
+                    && this.transform.getTranslateX() == 0
+                    && this.transform.getTranslateY() == 0;
+        }
+
+        /**
+         * El mayor factor de submuestreo que deja al menos un pixel original
+         * por cada pixel final
+         */
+        int subsampling() {
+            double scaleX = Math.hypot(this.transform.getScaleX(),
+                    this.transform.getShearY());
+            double scaleY = Math.hypot(this.transform.getShearX(),
+                    this.transform.getScaleY());
+            double scale = Math.max(scaleX, scaleY);
+            return scale <= 0 ? 1 : Math.max(1, (int) (1 / scale));
+        }
+
+        /**
+         * Ajusta la transformación para partir de una imagen submuestreada en
+         * lugar de la original
+         */
+        void scaleSource(Dimension original, BufferedImage source) {
+            this.transform.concatenate(AffineTransform.getScaleInstance(
+                    (double) original.width / source.getWidth(),
+                    (double) original.height / source.getHeight()));
+        }
+
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * Las ocho orientaciones que puede tener una imagen: rotaciones en ángulos
+ * rectos combinadas o no con un reflejo. Los valores siguen el orden de la
+ * etiqueta Orientation de EXIF, y cada uno describe la transformación que hay
+ * que aplicar a los pixeles guardados para ver la imagen derecha.
+ * <p>
+ * Aplicar una orientación copia los pixeles a su nueva posición sin
+ * interpolar, por lo que el resultado es exacto y conserva el tipo de la
+ * imagen
+ * </p>
+ *
+ * @author Angel
+ */
+public enum Orientation {
+
+    /**
+     * La imagen ya está derecha
+     */
+    NORMAL(1, 1, 0, 0, 1),
+    /**
+     * Reflejo horizontal, de izquierda a derecha
+     */
+    FLIP_HORIZONTAL(2, -1, 0, 0, 1),
+    /**
+     * Rotación de 180 grados
+     */
+    ROTATE_180(3, -1, 0, 0, -1),
+    /**
+     * Reflejo vertical, de arriba a abajo
+     */
+    FLIP_VERTICAL(4, 1, 0, 0, -1),
+    /**
+     * Reflejo sobre la diagonal principal: las filas pasan a ser columnas
+     */
+    TRANSPOSE(5, 0, 1, 1, 0),
+    /**
+     * Rotación de 90 grados en la dirección de las agujas del reloj
+     */
+    ROTATE_90(6, 0, -1, 1, 0),
+    /**
+     * Reflejo sobre la diagonal secundaria
+     */
+    TRANSVERSE(7, 0, -1, -1, 0),
+    /**
+     * Rotación de 270 grados en la dirección de las agujas del reloj
+     */
+    ROTATE_270(8, 0, 1, -1, 0);
+
+    private final int exifValue;
+    private final int a;
+    private final int b;
+    private final int c;
+    private final int d;
+
+    /**
+     * Los coeficientes indican a donde va cada pixel: la columna nueva es
+     * {@code a * x + b * y} y la fila nueva {@code c * x + d * y}, más el
+     * desplazamiento necesario para que queden dentro de la imagen
+     */
+    private Orientation(int exifValue, int a, int b, int c, int d) {
+        this.exifValue = exifValue;
+        this.a = a;
+        this.b = b;
+        this.c = c;
+        this.d = d;
+    }
+
+    /**
+     * Devuelve el valor de la etiqueta EXIF correspondiente
+     *
+     * @return Un número del 1 al 8
+     */
+    public int getExifValue() {
+        return this.exifValue;
+    }
+
+    /**
+     * Determina si la orientación intercambia el ancho y el alto
+     *
+     * @return Si las filas pasan a ser columnas
+     */
+    public boolean isTransposed() {
+        return this.a == 0;
+    }
+
+    /**
+     * Devuelve la orientación que corresponde a una rotación en la dirección
+     * de las agujas del reloj
+     *
+     * @param degrees Los grados, que deben ser un múltiplo de 90
+     * @return La orientación equivalente
+     * @throws IllegalArgumentException Si los grados no son un múltiplo de 90
+     */
+    public static Orientation forRotation(int degrees) {
+        if (degrees % 90 != 0) {
+            throw new IllegalArgumentException(degrees
+                    + " no es un múltiplo de 90 grados");
+        }
+        switch (((degrees % 360) + 360) % 360) {
+            case 90:
+                return ROTATE_90;
+            case 180:
+                return ROTATE_180;
+            case 270:
+                return ROTATE_270;
+            default:
+                return NORMAL;
+        }
+    }
+
+    /**
+     * Busca la orientación que corresponde a un valor de la etiqueta EXIF
+     *
+     * @param exifValue El valor de la etiqueta
+     * @return La orientación, o NORMAL si el valor no es válido
+     */
+    public static Orientation fromExif(int exifValue) {
+        for (Orientation orientation : values()) {
+            if (orientation.exifValue == exifValue) {
+                return orientation;
+            }
+        }
+        return NORMAL;
+    }
+
+    /**
+     * Busca la orientación cuya transformación tiene la parte lineal
+     * indicada, con una tolerancia para errores de redondeo
+     *
+     * @param m00 El coeficiente de x en la columna nueva
+     * @param m01 El coeficiente de y en la columna nueva
+     * @param m10 El coeficiente de x en la fila nueva
+     * @param m11 El coeficiente de y en la fila nueva
+     * @return La orientación o null si la transformación no es una de ellas
+     */
+    static Orientation fromMatrix(double m00, double m01, double m10,
+            double m11) {
+        for (Orientation orientation : values()) {
+            if (Math.abs(orientation.a - m00) < 1e-9
+                    && Math.abs(orientation.b - m01) < 1e-9
+                    && Math.abs(orientation.c - m10) < 1e-9
+                    && Math.abs(orientation.d - m11) < 1e-9) {
+                return orientation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Devuelve la transformación afín equivalente para una imagen de un
+     * tamaño dado
+     *
+     * @param width El ancho de la imagen original
+     * @param height El alto de la imagen original
+     * @return La transformación de coordenadas originales a finales
+     */
+    AffineTransform toTransform(int width, int height) {
+        int newWidth = this.isTransposed() ? height : width;
+        int newHeight = this.isTransposed() ? width : height;
+        return new AffineTransform(this.a, this.c, this.b, this.d,
+                this.a < 0 || this.b < 0 ? newWidth : 0,
+                this.c < 0 || this.d < 0 ? newHeight : 0);
+    }
+
+    /**
+     * Aplica la orientación a una imagen. Las imagenes grandes se procesan en
+     * paralelo
+     *
+     * @param image La imagen
+     * @return Una imagen nueva del mismo tipo, o la misma imagen si la
+     * orientación es NORMAL
+     */
+    public BufferedImage apply(BufferedImage image) {
+        if (this == NORMAL) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int newWidth = this.isTransposed() ? height : width;
+        int newHeight = this.isTransposed() ? width : height;
+        int offsetX = this.a < 0 || this.b < 0 ? newWidth - 1 : 0;
+        int offsetY = this.c < 0 || this.d < 0 ? newHeight - 1 : 0;
+        return Rasters.remap(image, newWidth, newHeight,
+                offsetY * newWidth + offsetX,
+                this.a + this.c * newWidth,
+                this.b + this.d * newWidth);
+    }
+
+}
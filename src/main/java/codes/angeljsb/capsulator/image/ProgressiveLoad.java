@@ -0,0 +1,314 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Carga de una imagen en segundo plano que publica la imagen a medio
+ * decodificar mientras avanza.
+ * <p>
+ * Los jpeg progresivos y los png entrelazados se decodifican en varias
+ * pasadas, cada una con más detalle que la anterior, y el resto de formatos
+ * fila por fila. Mientras tanto la imagen a medio decodificar se entrega
+ * como mucho una vez por intervalo, así la primera vista aparece mucho antes
+ * que la imagen completa. La imagen entregada es siempre la misma que el
+ * lector sigue llenando.
+ * </p>
+ * <p>
+ * Cancelar la carga detiene al lector en la siguiente fila o pasada, así una
+ * imagen que ya no se va a mostrar deja de consumir CPU
+ * </p>
+ *
+ * @author Angel
+ */
+public class ProgressiveLoad implements Future<BufferedImage> {
+
+    private static final ExecutorService EXECUTOR
+            = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task,
+                        "capsulator-progressive-load");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final File file;
+    private final long interval;
+    private final Consumer<BufferedImage> onUpdate;
+    private final Consumer<BufferedImage> onComplete;
+    private final CompletableFuture<BufferedImage> result
+            = new CompletableFuture<>();
+    private volatile float progress = 0;
+    private long lastUpdate = 0;
+    private boolean updated = false;
+
+    /**
+     * Crea la carga sin iniciarla. ImageLoader.loadProgressive() es quien la
+     * crea e inicia
+     */
+    ProgressiveLoad(File file, long interval, Consumer<BufferedImage> onUpdate,
+            Consumer<BufferedImage> onComplete) {
+        this.file = file;
+        this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(0, interval));
+        this.onUpdate = onUpdate;
+        this.onComplete = onComplete;
+    }
+
+    /**
+     * Inicia la carga en un hilo de segundo plano
+     *
+     * @return Esta misma carga
+     */
+    ProgressiveLoad start() {
+        EXECUTOR.execute(this::run);
+        return this;
+    }
+
+    private void run() {
+        BufferedImage image = null;
+        try {
+            if (!this.isCancelled()) {
+                image = this.read();
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (!this.isCancelled()) {
+                ex.printStackTrace(System.err);
+                this.result.completeExceptionally(ex);
+            }
+        }
+        if (this.isCancelled()) {
+            image = null;
+        }
+        try {
+            if (this.onComplete != null) {
+                this.onComplete.accept(image);
+            }
+        } finally {
+            if (image != null) {
+                this.progress = 100;
+                this.result.complete(image);
+            }
+        }
+    }
+
+    private BufferedImage read() throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(this.file)) {
+            ImageReader found = CodecPool.reader(in, this.file, false, true);
+            if (found == null) {
+                throw new IOException("Formato de imagen no reconocido: "
+                        + this.file);
+            }
+            try {
+                found.addIIOReadUpdateListener(new Updates());
+                found.addIIOReadProgressListener(new Progress());
+                if (this.isCancelled()) {
+                    return null;
+                }
+                BufferedImage image = found.read(0);
+                return this.isCancelled()
+                        ? null
+                        : ImageLoader.validImageType(image);
+            } finally {
+                CodecPool.release(found);
+            }
+        }
+    }
+
+    /**
+     * Entrega la imagen a medio decodificar si ya pasó el intervalo desde la
+     * última entrega. La primera entrega se hace en cuanto hay pixeles
+     */
+    private void update(ImageReader source, BufferedImage image) {
+        if (this.stopIfCancelled(source) || this.onUpdate == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (this.updated && now - this.lastUpdate < this.interval) {
+            return;
+        }
+        this.updated = true;
+        this.lastUpdate = now;
+        this.onUpdate.accept(image);
+    }
+
+    /**
+     * Pide al lector que se detenga si la carga se canceló. Algunos lectores
+     * solo aceptan abort() desde el hilo que está leyendo, por eso se hace
+     * desde sus propios eventos y no desde cancel()
+     */
+    private boolean stopIfCancelled(ImageReader source) {
+        if (this.isCancelled()) {
+            source.abort();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Devuelve el archivo que se está cargando
+     *
+     * @return El archivo
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Devuelve el avance de la decodificación según el lector
+     *
+     * @return El porcentaje decodificado, de 0 a 100
+     */
+    public float getProgress() {
+        return this.progress;
+    }
+
+    /**
+     * Cancela la carga. El lector se detiene en la siguiente fila o pasada y
+     * no se entregan más imagenes
+     *
+     * @param mayInterruptIfRunning Se ignora; el lector se detiene siempre
+     * @return Si la carga se canceló; false si ya había terminado
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return this.result.cancel(false);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return this.result.isCancelled();
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.result.isDone();
+    }
+
+    /**
+     * Espera a que termine la carga
+     *
+     * @return La imagen completa
+     * @throws InterruptedException Si el hilo se interrumpe mientras espera
+     * @throws ExecutionException Si no se pudo leer el archivo
+     */
+    @Override
+    public BufferedImage get() throws InterruptedException,
+            ExecutionException {
+        return this.result.get();
+    }
+
+    @Override
+    public BufferedImage get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException,
+            TimeoutException {
+        return this.result.get(timeout, unit);
+    }
+
+    /**
+     * Recibe las filas y pasadas decodificadas
+     */
+    private class Updates implements IIOReadUpdateListener {
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage image,
+                int pass, int minPass, int maxPass, int minX, int minY,
+                int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage image,
+                int minX, int minY, int width, int height, int periodX,
+                int periodY, int[] bands) {
+            ProgressiveLoad.this.update(source, image);
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage image) {
+            ProgressiveLoad.this.update(source, image);
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source,
+                BufferedImage thumbnail, int pass, int minPass, int maxPass,
+                int minX, int minY, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source,
+                BufferedImage thumbnail, int minX, int minY, int width,
+                int height, int periodX, int periodY, int[] bands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source,
+                BufferedImage thumbnail) {
+        }
+
+    }
+
+    /**
+     * Recibe el avance de la decodificación
+     */
+    private class Progress implements IIOReadProgressListener {
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            ProgressiveLoad.this.progress = percentageDone;
+            ProgressiveLoad.this.stopIfCancelled(source);
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex,
+                int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source,
+                float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+        }
+
+    }
+
+}
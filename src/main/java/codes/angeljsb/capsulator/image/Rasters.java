@@ -0,0 +1,366 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import codes.angeljsb.capsulator.util.PixelKernel;
+
+/**
+ * Funciones para pasar imagenes a arreglos de pixeles ARGB y viceversa
+ *
+ * @author Angel
+ */
+final class Rasters {
+
+    /**
+     * El lado de los bloques en los que se recorren las imagenes al mover
+     * pixeles de sitio, para que tanto el origen como el destino de cada
+     * bloque quepan en la caché del procesador
+     */
+    private static final int BLOCK = 64;
+
+    private Rasters() {
+    }
+
+    /**
+     * Copia los pixeles de una imagen en un arreglo ARGB sin premultiplicar,
+     * fila por fila
+     *
+     * @param image La imagen
+     * @return Los pixeles de la imagen
+     */
+    static int[] toArgb(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] data = packedData(image);
+        if (data == null) {
+            return image.getRGB(0, 0, width, height, null, 0, width);
+        }
+        int[] argb = data.clone();
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            for (int i = 0; i < argb.length; i++) {
+                argb[i] |= 0xFF000000;
+            }
+        }
+        return argb;
+    }
+
+    /**
+     * Devuelve el arreglo interno de una imagen de tipo TYPE_INT_ARGB o
+     * TYPE_INT_RGB cuando sus pixeles ocupan el arreglo completo, fila por
+     * fila y sin desplazamientos
+     *
+     * @param image La imagen
+     * @return El arreglo interno o null si la imagen no cumple las condiciones
+     */
+    static int[] packedData(BufferedImage image) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_ARGB
+                && type != BufferedImage.TYPE_INT_RGB) {
+            return null;
+        }
+        WritableRaster raster = image.getRaster();
+        if (raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0
+                || !(raster.getSampleModel()
+                instanceof SinglePixelPackedSampleModel)
+                || ((SinglePixelPackedSampleModel) raster.getSampleModel())
+                        .getScanlineStride() != image.getWidth()) {
+            return null;
+        }
+        int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+        return data.length == image.getWidth() * image.getHeight()
+                ? data
+                : null;
+    }
+
+    /**
+     * Devuelve el tipo de imagen a usar para el resultado de una operación,
+     * evitando BufferedImage.TYPE_CUSTOM
+     *
+     * @param image La imagen original
+     * @return El tipo de la imagen original o BufferedImage.TYPE_INT_ARGB
+     */
+    static int resultType(BufferedImage image) {
+        int type = image.getType();
+        return type == BufferedImage.TYPE_CUSTOM
+                ? BufferedImage.TYPE_INT_ARGB
+                : type;
+    }
+
+    /**
+     * Crea una imagen a partir de un arreglo de pixeles ARGB sin
+     * premultiplicar
+     *
+     * @param argb Los pixeles, fila por fila
+     * @param width El ancho de la imagen
+     * @param height El alto de la imagen
+     * @param type El tipo de la imagen a crear
+     * @return La imagen creada
+     */
+    static BufferedImage toImage(int[] argb, int width, int height,
+            int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        if (type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_INT_RGB) {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer())
+                    .getData();
+            System.arraycopy(argb, 0, data, 0, width * height);
+        } else {
+            image.setRGB(0, 0, width, height, argb, 0, width);
+        }
+        return image;
+    }
+
+
+    /**
+     * Devuelve el arreglo de bytes de una imagen cuyos pixeles están
+     * intercalados, fila por fila y sin desplazamientos, como TYPE_3BYTE_BGR,
+     * TYPE_4BYTE_ABGR, TYPE_BYTE_GRAY o TYPE_BYTE_INDEXED
+     *
+     * @param image La imagen
+     * @return El arreglo interno o null si la imagen no cumple las condiciones
+     */
+    static byte[] interleavedData(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        if (!(raster.getDataBuffer() instanceof DataBufferByte)
+                || !(raster.getSampleModel()
+                instanceof PixelInterleavedSampleModel)
+                || raster.getSampleModelTranslateX() != 0
+                || raster.getSampleModelTranslateY() != 0
+                || raster.getDataBuffer().getNumBanks() != 1
+                || raster.getDataBuffer().getOffset() != 0) {
+            return null;
+        }
+        PixelInterleavedSampleModel model
+                = (PixelInterleavedSampleModel) raster.getSampleModel();
+        int stride = model.getPixelStride();
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        return model.getScanlineStride() == image.getWidth() * stride
+                && data.length == image.getWidth() * image.getHeight() * stride
+                ? data
+                : null;
+    }
+
+    private static int[] bandOffsets(BufferedImage image) {
+        return ((PixelInterleavedSampleModel) image.getRaster()
+                .getSampleModel()).getBandOffsets();
+    }
+
+    private static int pixelStride(BufferedImage image) {
+        return ((PixelInterleavedSampleModel) image.getRaster()
+                .getSampleModel()).getPixelStride();
+    }
+
+    /**
+     * Crea una imagen vacía del mismo tipo que otra. Las imagenes con paleta
+     * o de tipo personalizado comparten además el modelo de color
+     *
+     * @param image La imagen de referencia
+     * @param width El ancho de la imagen nueva
+     * @param height El alto de la imagen nueva
+     * @return La imagen nueva
+     */
+    static BufferedImage compatible(BufferedImage image, int width,
+            int height) {
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_CUSTOM
+                && type != BufferedImage.TYPE_BYTE_INDEXED
+                && type != BufferedImage.TYPE_BYTE_BINARY) {
+            return new BufferedImage(width, height, type);
+        }
+        ColorModel model = image.getColorModel();
+        return new BufferedImage(model,
+                model.createCompatibleWritableRaster(width, height),
+                model.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Copia cada pixel de una imagen a una posición nueva sin interpolar. El
+     * pixel (x, y) del origen va al índice
+     * {@code origin + x * stepX + y * stepY} del destino. Se trabaja por
+     * bloques y, para imagenes grandes, en paralelo por bandas de filas.
+     * <p>
+     * Si la imagen guarda sus pixeles en un arreglo de ints o de bytes
+     * intercalados se copian los datos tal cual y el resultado conserva el
+     * tipo y la paleta; si no, se pasa por pixeles ARGB
+     * </p>
+     *
+     * @param image La imagen original
+     * @param width El ancho del resultado
+     * @param height El alto del resultado
+     * @param origin El índice de destino del pixel (0, 0)
+     * @param stepX Lo que avanza el índice de destino por cada columna
+     * @param stepY Lo que avanza el índice de destino por cada fila
+     * @return La imagen nueva
+     */
+    static BufferedImage remap(BufferedImage image, int width, int height,
+            int origin, int stepX, int stepY) {
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        int[] ints = packedData(image);
+        byte[] bytes = interleavedData(image);
+        BufferedImage result = ints != null || bytes != null
+                ? compatible(image, width, height)
+                : null;
+        if (ints != null) {
+            int[] target = packedData(result);
+            if (target != null) {
+                remap(ints, target, sourceWidth, sourceHeight, origin,
+                        stepX, stepY);
+                return result;
+            }
+        }
+        if (bytes != null) {
+            byte[] target = interleavedData(result);
+            if (target != null && pixelStride(result) == pixelStride(image)
+                    && Arrays.equals(bandOffsets(result),
+                            bandOffsets(image))) {
+                remap(bytes, target, pixelStride(image), sourceWidth,
+                        sourceHeight, origin, stepX, stepY);
+                return result;
+            }
+        }
+        int[] target = new int[width * height];
+        remap(toArgb(image), target, sourceWidth, sourceHeight, origin,
+                stepX, stepY);
+        return toImage(target, width, height, resultType(image));
+    }
+
+    private static void remap(int[] source, int[] target, int width,
+            int height, int origin, int stepX, int stepY) {
+        Bands.run(height, width, (from, to) -> {
+            for (int by = from; by < to; by += BLOCK) {
+                int endY = Math.min(to, by + BLOCK);
+                for (int bx = 0; bx < width; bx += BLOCK) {
+                    int endX = Math.min(width, bx + BLOCK);
+                    for (int y = by; y < endY; y++) {
+                        int row = y * width;
+                        int base = origin + y * stepY;
+                        for (int x = bx; x < endX; x++) {
+                            target[base + x * stepX] = source[row + x];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static void remap(byte[] source, byte[] target, int stride,
+            int width, int height, int origin, int stepX, int stepY) {
+        Bands.run(height, width, (first, last) -> {
+            for (int by = first; by < last; by += BLOCK) {
+                int endY = Math.min(last, by + BLOCK);
+                for (int bx = 0; bx < width; bx += BLOCK) {
+                    int endX = Math.min(width, bx + BLOCK);
+                    for (int y = by; y < endY; y++) {
+                        int row = y * width;
+                        int base = origin + y * stepY;
+                        for (int x = bx; x < endX; x++) {
+                            int from = (row + x) * stride;
+                            int into = (base + x * stepX) * stride;
+                            for (int k = 0; k < stride; k++) {
+                                target[into + k] = source[from + k];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Aplica una función a cada pixel de una imagen, modificándola. Las
+     * imagenes TYPE_INT_ARGB, TYPE_INT_RGB, TYPE_3BYTE_BGR y TYPE_4BYTE_ABGR
+     * se recorren directamente sobre su arreglo interno sin crear objetos; el
+     * resto se recorre fila por fila a través de su modelo de color
+     *
+     * @param image La imagen a modificar
+     * @param kernel La función a aplicar
+     * @param parallel Si las bandas de filas se reparten entre varios hilos
+     */
+    static void apply(BufferedImage image, PixelKernel kernel,
+            boolean parallel) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Bands.Task task = bandTask(image, kernel);
+        if (parallel && !(image.getColorModel() instanceof IndexColorModel)) {
+            Bands.run(height, width, task);
+        } else {
+            task.run(0, height);
+        }
+    }
+
+    private static Bands.Task bandTask(BufferedImage image,
+            PixelKernel kernel) {
+        int width = image.getWidth();
+        int type = image.getType();
+        int[] ints = packedData(image);
+        if (ints != null) {
+            int alpha = type == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+            return (from, to) -> {
+                for (int y = from, i = from * width; y < to; y++) {
+                    for (int x = 0; x < width; x++, i++) {
+                        ints[i] = kernel.apply(x, y, ints[i] | alpha);
+                    }
+                }
+            };
+        }
+        byte[] bytes = interleavedData(image);
+        if (bytes != null && type == BufferedImage.TYPE_3BYTE_BGR) {
+            return (from, to) -> {
+                for (int y = from, i = from * width * 3; y < to; y++) {
+                    for (int x = 0; x < width; x++, i += 3) {
+                        int argb = kernel.apply(x, y, 0xFF000000
+                                | (bytes[i + 2] & 0xFF) << 16
+                                | (bytes[i + 1] & 0xFF) << 8
+                                | (bytes[i] & 0xFF));
+                        bytes[i] = (byte) argb;
+                        bytes[i + 1] = (byte) (argb >> 8);
+                        bytes[i + 2] = (byte) (argb >> 16);
+                    }
+                }
+            };
+        }
+        if (bytes != null && type == BufferedImage.TYPE_4BYTE_ABGR) {
+            return (from, to) -> {
+                for (int y = from, i = from * width * 4; y < to; y++) {
+                    for (int x = 0; x < width; x++, i += 4) {
+                        int argb = kernel.apply(x, y,
+                                (bytes[i] & 0xFF) << 24
+                                | (bytes[i + 3] & 0xFF) << 16
+                                | (bytes[i + 2] & 0xFF) << 8
+                                | (bytes[i + 1] & 0xFF));
+                        bytes[i] = (byte) (argb >>> 24);
+                        bytes[i + 1] = (byte) argb;
+                        bytes[i + 2] = (byte) (argb >> 8);
+                        bytes[i + 3] = (byte) (argb >> 16);
+                    }
+                }
+            };
+        }
+        return (from, to) -> {
+            int[] row = new int[width];
+            for (int y = from; y < to; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    row[x] = kernel.apply(x, y, row[x]);
+                }
+                image.setRGB(0, y, width, 1, row, 0, width);
+            }
+        };
+    }
+
+}
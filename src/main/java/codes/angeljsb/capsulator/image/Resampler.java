@@ -0,0 +1,437 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.image;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Motor de redimensión de imagenes que trabaja directamente sobre arreglos de
+ * pixeles ARGB.
+ * <p>
+ * Los filtros de interpolación se aplican en dos pasadas separables, primero
+ * en horizontal y luego en vertical, con los pesos de cada pixel calculados
+ * una sola vez por columna y por fila. Los colores se premultiplican por el
+ * alfa durante la interpolación para que los pixeles transparentes no
+ * oscurezcan los bordes. Las imagenes grandes se reparten por bandas de filas
+ * entre los hilos del ForkJoinPool común.
+ * </p>
+ * El resultado de la pasada horizontal se guarda en un arreglo de floats de
+ * tamaño {@code anchoFinal * altoOriginal * 4}
+ *
+ * @author Angel
+ */
+public class Resampler {
+
+    /**
+     * Filtros de interpolación disponibles
+     */
+    public enum Filter {
+
+        /**
+         * Vecino más cercano. El más rápido, sin suavizado
+         */
+        NEAREST,
+        /**
+         * Interpolación lineal. Al reducir, el filtro se ensancha según la
+         * escala para tomar en cuenta todos los pixeles originales
+         */
+        BILINEAR,
+        /**
+         * Reducciones sucesivas a la mitad promediando bloques de 2 x 2 y una
+         * interpolación lineal final. Buena calidad con poco costo para
+         * reducciones grandes
+         */
+        PROGRESSIVE,
+        /**
+         * Filtro Lanczos de tres lóbulos. La mejor nitidez, y el más lento
+         */
+        LANCZOS,
+        /**
+         * Promedio de los pixeles originales cubiertos por cada pixel nuevo,
+         * ponderado por el área cubierta. Equivale a Image.SCALE_SMOOTH
+         */
+        AREA_AVERAGE;
+
+        /**
+         * Devuelve el filtro que se usa cuando no se especifica uno: promedio
+         * por área para reducir y lineal para ampliar
+         *
+         * @param sourceWidth El ancho original
+         * @param sourceHeight El alto original
+         * @param width El ancho final
+         * @param height El alto final
+         * @return El filtro predeterminado para la redimensión
+         */
+        public static Filter defaultFor(int sourceWidth, int sourceHeight,
+                int width, int height) {
+            return width <= sourceWidth && height <= sourceHeight
+                    ? AREA_AVERAGE
+                    : BILINEAR;
+        }
+
+    }
+
+    /**
+     * Redimensiona una imagen. Si el ancho o el alto son negativos se
+     * calculan manteniendo la escala original
+     *
+     * @param image La imagen a redimensionar
+     * @param width El ancho final
+     * @param height El alto final
+     * @param filter El filtro de interpolación
+     * @return Una imagen nueva del mismo tipo que la original, o la misma
+     * imagen si ya tiene el tamaño solicitado
+     */
+    public static BufferedImage resize(BufferedImage image, int width,
+            int height, Filter filter) {
+        int sourceWidth = image.getWidth();
+        int sourceHeight = image.getHeight();
+        Dimension target = ImageLoader.targetSize(sourceWidth, sourceHeight,
+                width, height);
+        if (target.width == sourceWidth && target.height == sourceHeight) {
+            return image;
+        }
+        int[] pixels = resize(Rasters.toArgb(image), sourceWidth,
+                sourceHeight, target.width, target.height, filter);
+        return Rasters.toImage(pixels, target.width, target.height,
+                Rasters.resultType(image));
+    }
+
+    /**
+     * Redimensiona un arreglo de pixeles ARGB sin premultiplicar
+     *
+     * @param source Los pixeles originales, fila por fila
+     * @param sourceWidth El ancho original
+     * @param sourceHeight El alto original
+     * @param width El ancho final
+     * @param height El alto final
+     * @param filter El filtro de interpolación
+     * @return Un arreglo nuevo con los pixeles redimensionados
+     * @throws IllegalArgumentException Si alguno de los tamaños no es
+     * positivo
+     */
+    public static int[] resize(int[] source, int sourceWidth,
+            int sourceHeight, int width, int height, Filter filter) {
+        if (sourceWidth <= 0 || sourceHeight <= 0 || width <= 0
+                || height <= 0) {
+            throw new IllegalArgumentException("Tamaño no válido: "
+                    + sourceWidth + "x" + sourceHeight + " a "
+                    + width + "x" + height);
+        }
+        if (filter == null) {
+            filter = Filter.defaultFor(sourceWidth, sourceHeight,
+                    width, height);
+        }
+        switch (filter) {
+            case NEAREST:
+                return nearest(source, sourceWidth, sourceHeight,
+                        width, height);
+            case PROGRESSIVE:
+                return progressive(source, sourceWidth, sourceHeight,
+                        width, height);
+            default:
+                return separable(source, sourceWidth, sourceHeight,
+                        width, height, filter);
+        }
+    }
+
+    private static int[] nearest(int[] source, int sourceWidth,
+            int sourceHeight, int width, int height) {
+        int[] columns = new int[width];
+        for (int x = 0; x < width; x++) {
+            columns[x] = Math.min(sourceWidth - 1,
+                    (int) ((x + 0.5) * sourceWidth / width));
+        }
+        int[] result = new int[width * height];
+        Bands.run(height, width, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                int row = Math.min(sourceHeight - 1,
+                        (int) ((y + 0.5) * sourceHeight / height))
+                        * sourceWidth;
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    result[offset + x] = source[row + columns[x]];
+                }
+            }
+        });
+        return result;
+    }
+
+    private static int[] progressive(int[] source, int sourceWidth,
+            int sourceHeight, int width, int height) {
+        int[] current = source;
+        int currentWidth = sourceWidth;
+        int currentHeight = sourceHeight;
+        while (currentWidth >= width * 2 || currentHeight >= height * 2) {
+            int nextWidth = currentWidth >= width * 2
+                    ? currentWidth / 2
+                    : currentWidth;
+            int nextHeight = currentHeight >= height * 2
+                    ? currentHeight / 2
+                    : currentHeight;
+            current = halve(current, currentWidth, currentHeight,
+                    nextWidth, nextHeight);
+            currentWidth = nextWidth;
+            currentHeight = nextHeight;
+        }
+        if (currentWidth == width && currentHeight == height) {
+            return current;
+        }
+        return separable(current, currentWidth, currentHeight,
+                width, height, Filter.BILINEAR);
+    }
+
+    /**
+     * Reduce a la mitad el ancho, el alto o ambos promediando bloques de
+     * pixeles. Cuando un lado es impar se descarta su última fila o columna
+     */
+    static int[] halve(int[] source, int sourceWidth,
+            int sourceHeight, int width, int height) {
+        int stepX = sourceWidth == width ? 0 : 1;
+        int stepY = sourceHeight == height ? 0 : sourceWidth;
+        int[] result = new int[width * height];
+        Bands.run(height, sourceWidth, (from, to) -> {
+            for (int y = from; y < to; y++) {
+                int row = (stepY == 0 ? y : y * 2) * sourceWidth;
+                for (int x = 0; x < width; x++) {
+                    int i = row + (stepX == 0 ? x : x * 2);
+                    result[y * width + x] = average(source[i],
+                            source[i + stepX], source[i + stepY],
+                            source[i + stepX + stepY]);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Promedia cuatro pixeles ARGB ponderando cada color por su alfa
+     */
+    private static int average(int p0, int p1, int p2, int p3) {
+        int a0 = p0 >>> 24;
+        int a1 = p1 >>> 24;
+        int a2 = p2 >>> 24;
+        int a3 = p3 >>> 24;
+        int a = a0 + a1 + a2 + a3;
+        if (a == 0) {
+            return 0;
+        }
+        int half = a >> 1;
+        int r = (((p0 >> 16) & 0xFF) * a0 + ((p1 >> 16) & 0xFF) * a1
+                + ((p2 >> 16) & 0xFF) * a2 + ((p3 >> 16) & 0xFF) * a3
+                + half) / a;
+        int g = (((p0 >> 8) & 0xFF) * a0 + ((p1 >> 8) & 0xFF) * a1
+                + ((p2 >> 8) & 0xFF) * a2 + ((p3 >> 8) & 0xFF) * a3
+                + half) / a;
+        int b = ((p0 & 0xFF) * a0 + (p1 & 0xFF) * a1 + (p2 & 0xFF) * a2
+                + (p3 & 0xFF) * a3 + half) / a;
+        return (((a + 2) >> 2) << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Aplica un filtro en dos pasadas. La horizontal produce colores
+     * premultiplicados en floats y la vertical los vuelve a convertir en
+     * pixeles ARGB
+     */
+    private static int[] separable(int[] source, int sourceWidth,
+            int sourceHeight, int width, int height, Filter filter) {
+        Weights horizontal = new Weights(sourceWidth, width, filter);
+        Weights vertical = new Weights(sourceHeight, height, filter);
+        float[] temp = new float[width * sourceHeight * 4];
+        Bands.run(sourceHeight, Math.max(width, sourceWidth),
+                (from, to) -> {
+                    for (int y = from; y < to; y++) {
+                        horizontalRow(source, y * sourceWidth, temp,
+                                y * width * 4, horizontal);
+                    }
+                });
+        int[] result = new int[width * height];
+        Bands.run(height, width, (from, to) -> {
+            float[] sum = new float[width * 4];
+            for (int y = from; y < to; y++) {
+                verticalRow(temp, width, sum, vertical, y);
+                for (int x = 0, i = 0; x < width; x++, i += 4) {
+                    result[y * width + x] = unpremultiply(sum[i],
+                            sum[i + 1], sum[i + 2], sum[i + 3]);
+                }
+            }
+        });
+        return result;
+    }
+
+    private static void horizontalRow(int[] source, int sourceOffset,
+            float[] temp, int tempOffset, Weights weights) {
+        for (int x = 0; x < weights.size; x++) {
+            float a = 0;
+            float r = 0;
+            float g = 0;
+            float b = 0;
+            int first = weights.first[x];
+            int base = x * weights.taps;
+            for (int k = 0; k < weights.count[x]; k++) {
+                int pixel = source[sourceOffset + first + k];
+                float weight = weights.values[base + k];
+                float alpha = (pixel >>> 24) * weight;
+                a += alpha;
+                r += ((pixel >> 16) & 0xFF) * alpha;
+                g += ((pixel >> 8) & 0xFF) * alpha;
+                b += (pixel & 0xFF) * alpha;
+            }
+            int i = tempOffset + x * 4;
+            temp[i] = a;
+            temp[i + 1] = r;
+            temp[i + 2] = g;
+            temp[i + 3] = b;
+        }
+    }
+
+    private static void verticalRow(float[] temp, int width, float[] sum,
+            Weights weights, int y) {
+        Arrays.fill(sum, 0);
+        int first = weights.first[y];
+        int base = y * weights.taps;
+        int length = width * 4;
+        for (int k = 0; k < weights.count[y]; k++) {
+            float weight = weights.values[base + k];
+            int offset = (first + k) * length;
+            for (int i = 0; i < length; i++) {
+                sum[i] += temp[offset + i] * weight;
+            }
+        }
+    }
+
+    /**
+     * Convierte un color premultiplicado por un alfa entre 0 y 255 en un
+     * pixel ARGB
+     */
+    private static int unpremultiply(float a, float r, float g, float b) {
+        if (a <= 0.5f) {
+            return 0;
+        }
+        int alpha = clamp(a);
+        return (alpha << 24) | (clamp(r / a) << 16) | (clamp(g / a) << 8)
+                | clamp(b / a);
+    }
+
+    private static int clamp(float value) {
+        int rounded = Math.round(value);
+        return rounded < 0 ? 0 : (rounded > 255 ? 255 : rounded);
+    }
+
+    /**
+     * Los pesos de los pixeles originales que forman cada pixel final a lo
+     * largo de un eje
+     */
+    private static class Weights {
+
+        private final int size;
+        private final int taps;
+        private final int[] first;
+        private final int[] count;
+        private final float[] values;
+
+        Weights(int sourceSize, int size, Filter filter) {
+            double scale = (double) sourceSize / size;
+            double support = support(filter) * Math.max(1, scale);
+            this.size = size;
+            this.taps = (int) Math.ceil(support * 2) + 2;
+            this.first = new int[size];
+            this.count = new int[size];
+            this.values = new float[size * this.taps];
+            for (int i = 0; i < size; i++) {
+                if (filter == Filter.AREA_AVERAGE) {
+                    this.area(i, sourceSize, scale);
+                } else {
+                    this.kernel(i, sourceSize, scale, support, filter);
+                }
+            }
+        }
+
+        /**
+         * Pesos proporcionales a la parte de cada pixel original que cubre el
+         * pixel final
+         */
+        private void area(int i, int sourceSize, double scale) {
+            double left = i * scale;
+            double right = Math.min(sourceSize, (i + 1) * scale);
+            int start = Math.min(sourceSize - 1, (int) left);
+            int end = Math.min(sourceSize, (int) Math.ceil(right));
+            int base = i * this.taps;
+            double total = 0;
+            int n = 0;
+            for (int j = start; j < end && n < this.taps; j++, n++) {
+                double covered = Math.min(right, j + 1) - Math.max(left, j);
+                this.values[base + n] = (float) Math.max(0, covered);
+                total += Math.max(0, covered);
+            }
+            this.normalize(i, start, n, total, sourceSize);
+        }
+
+        private void kernel(int i, int sourceSize, double scale,
+                double support, Filter filter) {
+            double center = (i + 0.5) * scale;
+            double stretch = Math.max(1, scale);
+            int start = Math.max(0, (int) Math.floor(center - support));
+            int end = Math.min(sourceSize, (int) Math.ceil(center + support));
+            int base = i * this.taps;
+            double total = 0;
+            int n = 0;
+            for (int j = start; j < end && n < this.taps; j++, n++) {
+                double weight = evaluate(filter,
+                        (j + 0.5 - center) / stretch);
+                this.values[base + n] = (float) weight;
+                total += weight;
+            }
+            this.normalize(i, start, n, total, sourceSize);
+        }
+
+        private void normalize(int i, int start, int n, double total,
+                int sourceSize) {
+            int base = i * this.taps;
+            if (n == 0 || total == 0) {
+                this.first[i] = Math.min(start, sourceSize - 1);
+                this.count[i] = 1;
+                this.values[base] = 1;
+                return;
+            }
+            for (int k = 0; k < n; k++) {
+                this.values[base + k] /= total;
+            }
+            this.first[i] = start;
+            this.count[i] = n;
+        }
+
+        private static double support(Filter filter) {
+            switch (filter) {
+                case LANCZOS:
+                    return 3;
+                case AREA_AVERAGE:
+                    return 0.5;
+                default:
+                    return 1;
+            }
+        }
+
+        private static double evaluate(Filter filter, double x) {
+            x = Math.abs(x);
+            if (filter == Filter.LANCZOS) {
+                if (x < 1e-8) {
+                    return 1;
+                }
+                if (x >= 3) {
+                    return 0;
+                }
+                double pix = Math.PI * x;
+                return 3 * Math.sin(pix) * Math.sin(pix / 3) / (pix * pix);
+            }
+            return x < 1 ? 1 - x : 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import codes.angeljsb.capsulator.BaseFile;
+
+/**
+ * Clase con funciones estaticas para adivinar la codificación de un texto a
+ * partir de sus primeros bytes.
+ * <p>
+ * Primero se busca una marca de orden de bytes (BOM). Si no hay, se buscan
+ * los bytes nulos típicos de UTF-16 y después se comprueba si los bytes son
+ * UTF-8 válido. Un texto ASCII se considera UTF-8, ya que es compatible y así
+ * no se pierden caracteres si luego se escribe texto que no sea ASCII. Si
+ * nada de lo anterior coincide se usa ISO-8859-1, que acepta cualquier byte.
+ * </p>
+ * Cuando hay BOM, la codificación devuelta no lo consume al leer, por lo que
+ * el texto leído empieza por el caracter {@code U+FEFF} y al volver a
+ * escribirlo con la misma codificación el archivo conserva su BOM
+ *
+ * @author Angel
+ */
+public class CharsetDetector {
+
+    /**
+     * La cantidad de bytes del principio del archivo que se analizan
+     */
+    public static final int SAMPLE_SIZE = 8192;
+
+    /**
+     * Adivina la codificación de un archivo leyendo sus primeros bytes
+     *
+     * @param file El archivo a analizar
+     * @return La codificación detectada o la codificación por defecto de la
+     * plataforma si el archivo no se puede leer
+     */
+    public static Charset detect(BaseFile file) {
+        try (InputStream in = file.getInputStream()) {
+            if (in == null) {
+                return Charset.defaultCharset();
+            }
+            byte[] sample = new byte[SAMPLE_SIZE];
+            int length = 0;
+            boolean complete = false;
+            while (length < sample.length) {
+                int count = in.read(sample, length, sample.length - length);
+                if (count == -1) {
+                    complete = true;
+                    break;
+                }
+                length += count;
+            }
+            return detect(sample, length, complete);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return Charset.defaultCharset();
+        }
+    }
+
+    /**
+     * Adivina la codificación de un texto completo
+     *
+     * @param bytes Los bytes del texto
+     * @param length La cantidad de bytes válidos en el arreglo
+     * @return La codificación detectada
+     */
+    public static Charset detect(byte[] bytes, int length) {
+        return detect(bytes, length, true);
+    }
+
+    /**
+     * Adivina la codificación de un texto a partir de sus primeros bytes
+     *
+     * @param bytes Los primeros bytes del texto
+     * @param length La cantidad de bytes válidos en el arreglo
+     * @param complete Si los bytes son el texto completo. Si no lo son, una
+     * secuencia UTF-8 cortada al final de la muestra se considera válida
+     * @return La codificación detectada
+     */
+    public static Charset detect(byte[] bytes, int length,
+            boolean complete) {
+        Charset bom = detectBom(bytes, length);
+        if (bom != null) {
+            return bom;
+        }
+        Charset utf16 = detectUtf16(bytes, length);
+        if (utf16 != null) {
+            return utf16;
+        }
+        if (isUtf8(bytes, length, !complete)) {
+            return StandardCharsets.UTF_8;
+        }
+        return StandardCharsets.ISO_8859_1;
+    }
+
+    /**
+     * Busca una marca de orden de bytes al principio del texto
+     *
+     * @return La codificación que indica la marca o null si no hay marca
+     */
+    private static Charset detectBom(byte[] b, int length) {
+        if (length >= 4 && b[0] == 0 && b[1] == 0
+                && (b[2] & 0xFF) == 0xFE && (b[3] & 0xFF) == 0xFF) {
+            return Charset.forName("UTF-32BE");
+        }
+        if (length >= 4 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE
+                && b[2] == 0 && b[3] == 0) {
+            return Charset.forName("UTF-32LE");
+        }
+        if (length >= 3 && (b[0] & 0xFF) == 0xEF && (b[1] & 0xFF) == 0xBB
+                && (b[2] & 0xFF) == 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        if (length >= 2 && (b[0] & 0xFF) == 0xFE && (b[1] & 0xFF) == 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (length >= 2 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+        return null;
+    }
+
+    /**
+     * Busca texto UTF-16 sin BOM por la cantidad de bytes nulos en las
+     * posiciones pares o impares, típica de texto latino en esa codificación
+     *
+     * @return La variante de UTF-16 detectada o null si no lo parece
+     */
+    private static Charset detectUtf16(byte[] b, int length) {
+        if (length < 4) {
+            return null;
+        }
+        int evenZeros = 0;
+        int oddZeros = 0;
+        for (int i = 0; i + 1 < length; i += 2) {
+            if (b[i] == 0) {
+                evenZeros++;
+            }
+            if (b[i + 1] == 0) {
+                oddZeros++;
+            }
+        }
+        int pairs = length / 2;
+        if (evenZeros > pairs * 0.4 && oddZeros < pairs * 0.05) {
+            return StandardCharsets.UTF_16BE;
+        }
+        if (oddZeros > pairs * 0.4 && evenZeros < pairs * 0.05) {
+            return StandardCharsets.UTF_16LE;
+        }
+        return null;
+    }
+
+    /**
+     * Comprueba si los bytes son UTF-8 válido
+     *
+     * @param truncated Si se acepta una secuencia incompleta al final, por
+     * estar la muestra cortada
+     * @return Si los bytes son UTF-8 válido
+     */
+    private static boolean isUtf8(byte[] b, int length, boolean truncated) {
+        int i = 0;
+        while (i < length) {
+            int value = b[i] & 0xFF;
+            int extra;
+            if (value < 0x80) {
+                i++;
+                continue;
+            } else if (value >= 0xC2 && value <= 0xDF) {
+                extra = 1;
+            } else if (value >= 0xE0 && value <= 0xEF) {
+                extra = 2;
+            } else if (value >= 0xF0 && value <= 0xF4) {
+                extra = 3;
+            } else {
+                return false;
+            }
+            for (int j = 1; j <= extra; j++) {
+                if (i + j >= length) {
+                    return truncated;
+                }
+                if ((b[i + j] & 0xC0) != 0x80) {
+                    return false;
+                }
+            }
+            i += extra + 1;
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.text;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import codes.angeljsb.capsulator.BaseFile;
+import codes.angeljsb.capsulator.FileTypeException;
+
+/**
+ * Índice con la posición en bytes donde empieza cada linea de un archivo de
+ * texto. Permite leer lineas concretas de archivos enormes sin cargarlos
+ * completos.
+ * <p>
+ * Las posiciones se guardan en un arreglo de longs y se calculan recorriendo
+ * el archivo una sola vez. Si el archivo solo ha crecido desde la última
+ * vez, al actualizar el índice únicamente se recorren los bytes nuevos.
+ * </p>
+ * Solo sirve para codificaciones en las que el salto de linea es el byte
+ * {@code 0x0A}, como ASCII, ISO-8859-1 o UTF-8
+ *
+ * @author Angel
+ */
+public class LineIndex {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private long[] starts = new long[256];
+    private int count = 1;
+    private long indexedLength = 0;
+    private long lastModified = -1;
+
+    /**
+     * Crea un índice vacío. Se llena al llamar a update()
+     */
+    public LineIndex() {
+    }
+
+    /**
+     * Actualiza el índice para que corresponda con el contenido actual del
+     * archivo. Si el archivo no ha cambiado no se hace nada, si solo ha
+     * crecido se indexan los bytes nuevos y en cualquier otro caso se vuelve
+     * a construir el índice completo
+     *
+     * @param file El archivo indexado
+     * @return Si se pudo leer el archivo
+     * @throws FileTypeException Si el archivo está comprimido
+     */
+    public boolean update(BaseFile file) {
+        TextLoader.requireUncompressed(file);
+        long length = file.length();
+        long modified = file.lastModified();
+        if (length == this.indexedLength && modified == this.lastModified) {
+            return true;
+        }
+        if (length < this.indexedLength
+                || (length == this.indexedLength && length > 0)) {
+            this.invalidate();
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            this.scan(channel, length);
+            this.lastModified = modified;
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            this.invalidate();
+            return false;
+        }
+    }
+
+    /**
+     * Recorre el archivo desde el último byte indexado hasta {@code length}
+     * añadiendo el inicio de cada linea encontrada
+     */
+    private void scan(FileChannel channel, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = this.indexedLength;
+        while (position < length) {
+            buffer.clear();
+            if (length - position < buffer.capacity()) {
+                buffer.limit((int) (length - position));
+            }
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                break;
+            }
+            byte[] array = buffer.array();
+            for (int i = 0; i < read; i++) {
+                if (array[i] == '\n') {
+                    this.add(position + i + 1);
+                }
+            }
+            position += read;
+        }
+        this.indexedLength = position;
+    }
+
+    private void add(long start) {
+        if (this.count == this.starts.length) {
+            this.starts = Arrays.copyOf(this.starts, this.count * 2);
+        }
+        this.starts[this.count++] = start;
+    }
+
+    /**
+     * Descarta todas las posiciones guardadas. La próxima llamada a update()
+     * recorrerá el archivo completo
+     */
+    public void invalidate() {
+        this.count = 1;
+        this.indexedLength = 0;
+        this.lastModified = -1;
+    }
+
+    /**
+     * Devuelve la cantidad de lineas indexadas. Un salto de linea al final del
+     * archivo no cuenta como el inicio de una linea nueva
+     *
+     * @return La cantidad de lineas
+     */
+    public int lineCount() {
+        if (this.starts[this.count - 1] < this.indexedLength) {
+            return this.count;
+        }
+        return this.count - 1;
+    }
+
+    /**
+     * Devuelve la posición en bytes donde empieza una linea
+     *
+     * @param line El número de la linea, empezando en 0
+     * @return La posición del primer byte de la linea
+     */
+    public long start(int line) {
+        this.checkLine(line);
+        return this.starts[line];
+    }
+
+    /**
+     * Devuelve la posición en bytes donde termina una linea, incluyendo su
+     * salto de linea
+     *
+     * @param line El número de la linea, empezando en 0
+     * @return La posición siguiente al último byte de la linea
+     */
+    public long end(int line) {
+        this.checkLine(line);
+        return line + 1 < this.count
+                ? this.starts[line + 1]
+                : this.indexedLength;
+    }
+
+    /**
+     * Devuelve la cantidad de bytes del archivo que están indexados
+     *
+     * @return El tamaño indexado del archivo
+     */
+    public long getIndexedLength() {
+        return this.indexedLength;
+    }
+
+    private void checkLine(int line) {
+        if (line < 0 || line >= this.lineCount()) {
+            throw new IndexOutOfBoundsException("Linea " + line
+                    + ", cantidad de lineas " + this.lineCount());
+        }
+    }
+
+}
@@ -0,0 +1,436 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.text;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import codes.angeljsb.capsulator.FileTypeException;
+
+/**
+ * Secuencia de caracteres respaldada por la región de un archivo mapeada en
+ * memoria. El texto completo nunca se copia al heap de java.
+ * <p>
+ * Si la codificación es de un solo byte por caracter (ASCII o ISO-8859-1),
+ * cada caracter se obtiene directamente del byte correspondiente sin
+ * decodificar nada. Con cualquier otra codificación, la primera vez que se
+ * accede al texto se recorre una vez para anotar en qué byte empieza cada
+ * ventana de 64KB y cuántos caracteres hay antes; después solo se decodifica
+ * la ventana donde está el caracter pedido, y se conserva hasta que se pide
+ * uno de otra ventana. Los recorridos secuenciales, como los de las
+ * expresiones regulares, decodifican cada ventana una sola vez.
+ * </p>
+ * <p>
+ * Como cada ventana se decodifica por separado, las codificaciones UTF-16 y
+ * UTF-32 que indican el orden de los bytes con una marca al principio se
+ * resuelven una sola vez al crear el objeto: la marca se salta y se usa la
+ * variante con el orden explícito. Las codificaciones que cambian de estado
+ * con secuencias de escape, como ISO-2022-JP, no pueden empezar a
+ * decodificarse en medio del texto, así que con ellas todo el texto es una
+ * sola ventana y ocupa en el heap lo mismo que un String.
+ * </p>
+ * Puede usarse con expresiones regulares como cualquier otro CharSequence.
+ * Al igual que un StringBuilder, no debe usarse desde varios hilos a la vez
+ *
+ * @author Angel
+ */
+public class MappedText implements CharSequence {
+
+    /**
+     * La cantidad de bytes que se decodifican juntos con las codificaciones
+     * de varios bytes por caracter
+     */
+    static final int WINDOW_BYTES = 64 * 1024;
+
+    /**
+     * Codificaciones con estado que no tienen ISO-2022 en el nombre
+     */
+    private static final Set<String> STATEFUL = new HashSet<>(Arrays.asList(
+            "x-windows-50220", "x-windows-50221", "x-JISAutoDetect",
+            "x-IBM930", "x-IBM933", "x-IBM935", "x-IBM937", "x-IBM939",
+            "x-IBM1364", "x-IBM1371", "x-IBM1388", "x-IBM1390",
+            "x-IBM1399"));
+
+    private final ByteBuffer bytes;
+    private final Charset charset;
+    private final Charset decoding;
+    private final boolean singleByte;
+    private Index index = null;
+    private final int start;
+    private int end;
+    private CharsetDecoder decoder = null;
+    private char[] window = null;
+    private int windowNumber = -1;
+    private boolean windowShared = false;
+
+    /**
+     * Crea una secuencia de caracteres sobre una región de bytes
+     *
+     * @param bytes Los bytes del texto, normalmente un MappedByteBuffer
+     * @param charset La codificación de los bytes
+     */
+    public MappedText(ByteBuffer bytes, Charset charset) {
+        ByteBuffer text = bytes.slice();
+        this.decoding = byteOrder(text, charset);
+        this.bytes = text.slice();
+        this.charset = charset;
+        this.singleByte = isSingleByte(charset);
+        this.start = 0;
+        this.end = -1;
+    }
+
+    /**
+     * Crea una vista de los caracteres {@code start} a {@code end} de otro
+     * texto, compartiendo su índice y su ventana actual. La ventana
+     * compartida no se sobrescribe: el primero que necesite otra la crea
+     */
+    private MappedText(MappedText parent, int start, int end) {
+        this.bytes = parent.bytes;
+        this.charset = parent.charset;
+        this.decoding = parent.decoding;
+        this.singleByte = false;
+        this.index = parent.index();
+        this.start = start;
+        this.end = end;
+        this.window = parent.window;
+        this.windowNumber = parent.windowNumber;
+        this.windowShared = true;
+        parent.windowShared = true;
+    }
+
+    /**
+     * Determina si una codificación usa exactamente un byte por caracter y se
+     * puede leer sin pasar por un decodificador
+     *
+     * @param charset La codificación
+     * @return Si la codificación es ASCII o ISO-8859-1
+     */
+    static boolean isSingleByte(Charset charset) {
+        return charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Resuelve el orden de los bytes de UTF-16 y UTF-32, que se indica con
+     * una marca al principio del texto. Si la hay, se salta. Sin marca, igual
+     * que los decodificadores de java, se supone big-endian
+     *
+     * @param bytes Los bytes del texto. Si empiezan por una marca, su
+     * posición avanza hasta después de ella
+     * @param charset La codificación indicada
+     * @return La codificación con el orden explícito, o la indicada si no
+     * es UTF-16 ni UTF-32
+     */
+    static Charset byteOrder(ByteBuffer bytes, Charset charset) {
+        int start = bytes.position();
+        int available = bytes.remaining();
+        if (charset.equals(StandardCharsets.UTF_16)) {
+            int first = available >= 2 ? bytes.get(start) & 0xFF : 0;
+            int second = available >= 2 ? bytes.get(start + 1) & 0xFF : 0;
+            if (first == 0xFF && second == 0xFE) {
+                bytes.position(start + 2);
+                return StandardCharsets.UTF_16LE;
+            }
+            if (first == 0xFE && second == 0xFF) {
+                bytes.position(start + 2);
+            }
+            return StandardCharsets.UTF_16BE;
+        }
+        if (charset.name().equals("UTF-32")) {
+            int mark = available >= 4 ? bytes.duplicate()
+                    .order(ByteOrder.BIG_ENDIAN).getInt(start) : 0;
+            if (mark == 0xFFFE0000) {
+                bytes.position(start + 4);
+                return Charset.forName("UTF-32LE");
+            }
+            if (mark == 0x0000FEFF) {
+                bytes.position(start + 4);
+            }
+            return Charset.forName("UTF-32BE");
+        }
+        return charset;
+    }
+
+    /**
+     * Determina si una codificación cambia de estado con secuencias de
+     * escape, por lo que no puede decodificarse empezando en medio del texto
+     *
+     * @param charset La codificación
+     * @return Si la codificación tiene estado
+     */
+    static boolean isStateful(Charset charset) {
+        return charset.name().contains("2022")
+                || STATEFUL.contains(charset.name());
+    }
+
+    /**
+     * Recorre el texto para crear el índice de ventanas la primera vez que se
+     * necesita
+     *
+     * @return El índice
+     */
+    private Index index() {
+        if (this.index == null) {
+            this.index = new Index(this.bytes, this.decoder(),
+                    isStateful(this.decoding)
+                    ? Integer.MAX_VALUE : WINDOW_BYTES);
+            this.end = this.index.length();
+        }
+        return this.index;
+    }
+
+    private CharsetDecoder decoder() {
+        if (this.decoder == null) {
+            this.decoder = this.decoding.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        return this.decoder;
+    }
+
+    /**
+     * Decodifica una ventana y la guarda como la ventana actual, si no lo es
+     * ya
+     *
+     * @param number El número de la ventana
+     */
+    private void load(int number) {
+        if (number == this.windowNumber) {
+            return;
+        }
+        Index positions = this.index();
+        int length = positions.chars[number + 1] - positions.chars[number];
+        if (this.window == null || this.windowShared
+                || this.window.length < length) {
+            this.window = new char[length];
+            this.windowShared = false;
+        }
+        ByteBuffer in = this.bytes.duplicate();
+        in.limit(positions.bytes[number + 1]);
+        in.position(positions.bytes[number]);
+        CharBuffer out = CharBuffer.wrap(this.window, 0, length);
+        decode(this.decoder(), in, out, number == positions.count - 1);
+        this.windowNumber = number;
+    }
+
+    /**
+     * Decodifica unos bytes, empezando con el decodificador sin estado.
+     * Si la salida se llena se vacía y se sigue decodificando
+     *
+     * @param decoder El decodificador
+     * @param in Los bytes a decodificar. Si no son los últimos del texto, los
+     * bytes finales de un caracter incompleto se quedan sin consumir
+     * @param out Donde se escriben los caracteres
+     * @param last Si son los últimos bytes del texto
+     * @return La cantidad de caracteres decodificados
+     */
+    private static long decode(CharsetDecoder decoder, ByteBuffer in,
+            CharBuffer out, boolean last) {
+        decoder.reset();
+        long count = 0;
+        while (true) {
+            CoderResult result = decoder.decode(in, out, last);
+            if (result.isUnderflow() && last) {
+                result = decoder.flush(out);
+            }
+            if (result.isUnderflow()) {
+                break;
+            }
+            if (result.isOverflow()) {
+                count += out.position();
+                out.clear();
+            } else {
+                try {
+                    result.throwException();
+                } catch (CharacterCodingException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        }
+        return count + out.position();
+    }
+
+    /**
+     * Devuelve la codificación con la que se interpretan los bytes
+     *
+     * @return La codificación
+     */
+    public Charset getCharset() {
+        return this.charset;
+    }
+
+    /**
+     * Determina si el texto ya se recorrió para saber dónde empieza cada
+     * ventana. Con codificaciones de un solo byte nunca hace falta recorrerlo
+     *
+     * @return Si el texto está indexado o no necesita estarlo
+     */
+    public boolean isDecoded() {
+        return this.singleByte || this.index != null;
+    }
+
+    @Override
+    public int length() {
+        if (this.singleByte) {
+            return this.bytes.limit();
+        }
+        this.index();
+        return this.end - this.start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (this.singleByte) {
+            int value = this.bytes.get(index) & 0xFF;
+            if (value > 0x7F
+                    && this.charset.equals(StandardCharsets.US_ASCII)) {
+                return '\uFFFD';
+            }
+            return (char) value;
+        }
+        if (index < 0 || index >= this.length()) {
+            throw new IndexOutOfBoundsException("index " + index
+                    + ", length " + this.length());
+        }
+        int position = this.start + index;
+        Index positions = this.index();
+        if (this.windowNumber < 0
+                || position < positions.chars[this.windowNumber]
+                || position >= positions.chars[this.windowNumber + 1]) {
+            this.load(positions.windowOf(position));
+        }
+        return this.window[position - positions.chars[this.windowNumber]];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > this.length() || start > end) {
+            throw new IndexOutOfBoundsException(
+                    "start " + start + ", end " + end
+                    + ", length " + this.length());
+        }
+        if (this.singleByte) {
+            ByteBuffer region = this.bytes.duplicate();
+            region.position(start);
+            region.limit(end);
+            return new MappedText(region, this.charset);
+        }
+        return new MappedText(this, this.start + start, this.start + end);
+    }
+
+    @Override
+    public String toString() {
+        if (this.singleByte) {
+            ByteBuffer copy = this.bytes.duplicate();
+            byte[] array = new byte[copy.remaining()];
+            copy.get(array);
+            return new String(array, this.charset);
+        }
+        Index positions = this.index();
+        StringBuilder text = new StringBuilder(this.end - this.start);
+        int position = this.start;
+        while (position < this.end) {
+            int number = positions.windowOf(position);
+            this.load(number);
+            int first = positions.chars[number];
+            int last = Math.min(this.end, positions.chars[number + 1]);
+            text.append(this.window, position - first, last - position);
+            position = last;
+        }
+        return text.toString();
+    }
+
+    /**
+     * Posiciones en bytes y en caracteres donde empieza cada ventana. Cada
+     * ventana termina entre dos caracteres, así puede decodificarse sola
+     */
+    private static final class Index {
+
+        private final int count;
+        private final int[] bytes;
+        private final int[] chars;
+
+        /**
+         * Recorre el texto decodificándolo por ventanas, sin guardar los
+         * caracteres
+         */
+        private Index(ByteBuffer source, CharsetDecoder decoder,
+                int windowBytes) {
+            int size = source.limit();
+            int capacity = size / windowBytes + 2;
+            int[] byteStarts = new int[capacity + 1];
+            long[] charStarts = new long[capacity + 1];
+            ByteBuffer in = source.duplicate();
+            CharBuffer out = CharBuffer.allocate((int) Math.ceil(
+                    WINDOW_BYTES * (double) decoder.maxCharsPerByte()) + 16);
+            int windows = 0;
+            long total = 0;
+            while (true) {
+                int from = in.position();
+                boolean last = size - from <= windowBytes;
+                in.limit(last ? size : from + windowBytes);
+                total += decode(decoder, in, out, last);
+                out.clear();
+                windows++;
+                if (last) {
+                    break;
+                }
+                if (windows == byteStarts.length - 1) {
+                    byteStarts = Arrays.copyOf(byteStarts, windows * 2);
+                    charStarts = Arrays.copyOf(charStarts, windows * 2);
+                }
+                byteStarts[windows] = in.position();
+                charStarts[windows] = total;
+            }
+            if (total > Integer.MAX_VALUE) {
+                throw new FileTypeException("El texto tiene más caracteres "
+                        + "de los que puede tener un CharSequence");
+            }
+            byteStarts[windows] = size;
+            charStarts[windows] = total;
+            this.count = windows;
+            this.bytes = Arrays.copyOf(byteStarts, windows + 1);
+            this.chars = new int[windows + 1];
+            for (int i = 0; i <= windows; i++) {
+                this.chars[i] = (int) charStarts[i];
+            }
+        }
+
+        private int length() {
+            return this.chars[this.count];
+        }
+
+        /**
+         * Busca la ventana que contiene un caracter
+         *
+         * @param position La posición del caracter en el texto completo
+         * @return El número de la ventana
+         */
+        private int windowOf(int position) {
+            int found = Arrays.binarySearch(this.chars, 0, this.count,
+                    position);
+            if (found < 0) {
+                return -found - 2;
+            }
+            while (found + 1 < this.count
+                    && this.chars[found + 1] == position) {
+                found++;
+            }
+            return found;
+        }
+
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.text;
+
+import codes.angeljsb.capsulator.BaseFile;
+
+/**
+ * Representa una coincidencia encontrada al buscar texto en un archivo
+ *
+ * @author Angel
+ */
+public class SearchMatch {
+
+    private final BaseFile file;
+    private final int line;
+    private final int column;
+    private final long offset;
+    private final String match;
+    private final String lineText;
+
+    /**
+     * Crea una coincidencia
+     *
+     * @param file El archivo donde se encontró
+     * @param line El número de linea, empezando en 0
+     * @param column La posición de la coincidencia dentro de la linea
+     * @param offset La posición en caracteres de la coincidencia dentro del
+     * archivo
+     * @param match El texto que coincidió
+     * @param lineText El texto completo de la linea, sin el salto de linea
+     */
+    public SearchMatch(BaseFile file, int line, int column, long offset,
+            String match, String lineText) {
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.offset = offset;
+        this.match = match;
+        this.lineText = lineText;
+    }
+
+    /**
+     * Devuelve el archivo donde se encontró la coincidencia
+     *
+     * @return El archivo
+     */
+    public BaseFile getFile() {
+        return this.file;
+    }
+
+    /**
+     * Devuelve el número de linea de la coincidencia
+     *
+     * @return El número de linea, empezando en 0
+     */
+    public int getLine() {
+        return this.line;
+    }
+
+    /**
+     * Devuelve la posición de la coincidencia dentro de su linea
+     *
+     * @return La columna, empezando en 0
+     */
+    public int getColumn() {
+        return this.column;
+    }
+
+    /**
+     * Devuelve la posición de la coincidencia dentro del archivo
+     *
+     * @return La posición en caracteres desde el principio del archivo
+     */
+    public long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * Devuelve el texto que coincidió con la búsqueda
+     *
+     * @return El texto encontrado
+     */
+    public String getMatch() {
+        return this.match;
+    }
+
+    /**
+     * Devuelve la linea completa donde está la coincidencia
+     *
+     * @return El texto de la linea sin su salto de linea
+     */
+    public String getLineText() {
+        return this.lineText;
+    }
+
+    @Override
+    public String toString() {
+        return this.file.getPath() + ":" + (this.line + 1) + ":"
+                + (this.column + 1) + ": " + this.lineText;
+    }
+
+}
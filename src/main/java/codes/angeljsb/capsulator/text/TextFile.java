@@ -5,7 +5,15 @@
  */
 package codes.angeljsb.capsulator.text;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 import codes.angeljsb.capsulator.BaseFile;
+import codes.angeljsb.capsulator.FileTypeException;
 import codes.angeljsb.capsulator.ReadableFile;
 import codes.angeljsb.capsulator.util.Capsule;
 
@@ -16,8 +24,21 @@ import codes.angeljsb.capsulator.util.Capsule;
  */
 public class TextFile implements ReadableFile<String> {
 
+    /**
+     * El tamaño por defecto del buffer usado al leer el archivo por lineas
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
     private final BaseFile baseFile;
     private final Capsule<String> capsule = new Capsule();
+    private Charset charset = null;
+    private boolean charsetDetected = false;
+    private boolean mapped = false;
+    private MappedText mappedText = null;
+    private LineIndex lineIndex = null;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int appendBatchSize = 0;
+    private final StringBuilder pendingAppends = new StringBuilder();
 
     /**
      * Crea un objeto text file representando un archivo
@@ -28,6 +49,354 @@ public class TextFile implements ReadableFile<String> {
         this.baseFile = baseFile;
     }
 
+    /**
+     * Devuelve la codificación con la que se lee y escribe el archivo. Si no
+     * se ha indicado ninguna, la primera vez se detecta a partir de los
+     * primeros bytes del archivo con CharsetDetector y se mantiene para las
+     * siguientes lecturas y escrituras. Si el archivo no existe o está vacío
+     * se usa la codificación por defecto de la plataforma.<br>
+     * Si al escribir el contenido la codificación detectada no puede
+     * representar alguno de sus caracteres, el archivo se escribe en UTF-8 y
+     * esta pasa a ser su codificación
+     *
+     * @return La codificación del archivo
+     */
+    public Charset getCharset() {
+        if (this.charset == null) {
+            this.charset = this.baseFile.length() > 0
+                    ? CharsetDetector.detect(this.baseFile)
+                    : Charset.defaultCharset();
+            this.charsetDetected = true;
+        }
+        return this.charset;
+    }
+
+    /**
+     * Cambia la codificación con la que se lee y escribe el archivo. Con
+     * null se vuelve a detectar a partir del contenido del archivo. Una
+     * codificación indicada aquí se respeta siempre: si no puede representar
+     * el contenido, la escritura falla en lugar de cambiar de codificación
+     *
+     * @param charset La nueva codificación
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+        this.charsetDetected = false;
+    }
+
+    /**
+     * Determina si el objeto está en modo mapeado
+     *
+     * @return Si el texto se obtiene mapeando el archivo en memoria
+     */
+    public boolean isMapped() {
+        return this.mapped;
+    }
+
+    /**
+     * Activa o desactiva el modo mapeado. En este modo getSequence() devuelve
+     * una vista del archivo mapeado en memoria en lugar de cargar todo el
+     * texto como un String en el heap
+     *
+     * @param mapped Si se debe usar el modo mapeado
+     */
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
+        if (!mapped) {
+            this.mappedText = null;
+        }
+    }
+
+    /**
+     * Devuelve el texto del archivo como una secuencia de caracteres.
+     * <p>
+     * En modo mapeado se devuelve una vista del archivo mapeado en memoria
+     * que se decodifica la primera vez que se usa y soporta subSequence y
+     * expresiones regulares sin copiar el texto al heap. Si el modo mapeado
+     * no está activo es lo mismo que llamar a get()
+     * </p>
+     *
+     * @return El texto del archivo
+     */
+    public CharSequence getSequence() {
+        this.flushAppends();
+        if (!this.mapped) {
+            return this.get();
+        }
+        if (this.mappedText == null
+                || !this.mappedText.getCharset().equals(this.getCharset())) {
+            this.mappedText = TextLoader.map(this.baseFile,
+                    this.getCharset());
+        }
+        return this.mappedText;
+    }
+
+    /**
+     * Comprueba que la codificación del archivo use el byte {@code 0x0A} como
+     * salto de linea, lo que permite buscar lineas sin decodificar el texto
+     *
+     * @throws FileTypeException Si la codificación no lo cumple
+     */
+    void requireByteNewLine() {
+        byte[] newLine = "\n".getBytes(this.getCharset());
+        if (!Arrays.equals(newLine, new byte[]{'\n'})) {
+            throw new FileTypeException("La codificación "
+                    + this.getCharset().name() + " no permite buscar lineas "
+                    + "por bytes");
+        }
+    }
+
+    /**
+     * Devuelve el índice de lineas del archivo, actualizado con el contenido
+     * actual del archivo. La primera vez se construye recorriendo el archivo
+     * completo; después solo se indexan los bytes añadidos al final
+     *
+     * @return El índice de lineas del archivo
+     * @throws FileTypeException Si la codificación del archivo no usa el byte
+     * {@code 0x0A} como salto de linea
+     */
+    public LineIndex getLineIndex() {
+        this.requireByteNewLine();
+        this.flushAppends();
+        if (this.lineIndex == null) {
+            this.lineIndex = new LineIndex();
+        }
+        this.lineIndex.update(this.baseFile);
+        return this.lineIndex;
+    }
+
+    /**
+     * Devuelve la cantidad de lineas del archivo sin cargar su contenido
+     *
+     * @return La cantidad de lineas del archivo
+     */
+    public int lineCount() {
+        return this.getLineIndex().lineCount();
+    }
+
+    /**
+     * Lee una linea del archivo sin cargar el resto del contenido. La linea
+     * se devuelve sin su salto de linea
+     *
+     * @param line El número de la linea, empezando en 0
+     * @return El texto de la linea o null si no se pudo leer el archivo
+     */
+    public String line(int line) {
+        List<String> lines = this.lines(line, line + 1);
+        return lines == null ? null : lines.get(0);
+    }
+
+    /**
+     * Lee un rango de lineas del archivo con una sola lectura posicional, sin
+     * cargar el resto del contenido. Las lineas se devuelven sin sus saltos
+     * de linea
+     *
+     * @param from La primera linea a leer, empezando en 0
+     * @param to La linea siguiente a la última linea a leer
+     * @return Las lineas leídas o null si no se pudo leer el archivo
+     */
+    public List<String> lines(int from, int to) {
+        if (from > to) {
+            throw new IllegalArgumentException("from > to: " + from
+                    + " > " + to);
+        }
+        if (from == to) {
+            return new ArrayList<>();
+        }
+        LineIndex index = this.getLineIndex();
+        long start = index.start(from);
+        long length = index.end(to - 1) - start;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("El rango de lineas es "
+                    + "demasiado grande para leerse de una vez");
+        }
+        byte[] bytes = TextLoader.readBytes(this.baseFile, start,
+                (int) length);
+        if (bytes == null) {
+            return null;
+        }
+        List<String> lines = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            int lineStart = (int) (index.start(i) - start);
+            int lineEnd = (int) Math.min(index.end(i) - start, bytes.length);
+            if (lineEnd > lineStart && bytes[lineEnd - 1] == '\n') {
+                lineEnd--;
+            }
+            if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            lines.add(new String(bytes, lineStart,
+                    Math.max(lineEnd - lineStart, 0), this.getCharset()));
+        }
+        return lines;
+    }
+
+    /**
+     * Devuelve el tamaño del buffer usado al leer el archivo por lineas
+     *
+     * @return El tamaño del buffer en caracteres
+     */
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    /**
+     * Cambia el tamaño del buffer usado al leer el archivo por lineas. Un
+     * buffer más grande reduce la cantidad de lecturas en archivos enormes
+     *
+     * @param bufferSize El tamaño del buffer en caracteres
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("El tamaño del buffer debe "
+                    + "ser positivo");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Devuelve un stream con las lineas del archivo que las va leyendo a
+     * medida que se consumen, sin cargar el contenido completo. Ignora el
+     * contenido de la capsula.
+     * <p>
+     * El archivo se cierra al terminar el recorrido o al cerrar el stream, por
+     * lo que conviene usarlo dentro de un try-with-resources
+     * </p>
+     *
+     * @return Las lineas del archivo o null si el archivo no se puede leer
+     */
+    public Stream<String> lines() {
+        this.flushAppends();
+        return TextLoader.lines(this.baseFile, this.getCharset(),
+                this.bufferSize);
+    }
+
+    /**
+     * Ejecuta una acción por cada linea del archivo, leyéndolas a medida que
+     * se procesan. Ignora el contenido de la capsula
+     *
+     * @param action La acción a ejecutar con cada linea
+     * @return La cantidad de lineas procesadas o {@code -1} si no se pudo leer
+     * el archivo
+     */
+    public long forEachLine(Consumer<String> action) {
+        this.flushAppends();
+        return TextLoader.forEachLine(this.baseFile, this.getCharset(),
+                this.bufferSize, action);
+    }
+
+    /**
+     * Devuelve la cantidad de caracteres que se acumulan antes de escribir
+     * los textos añadidos con append()
+     *
+     * @return El tamaño del lote o {@code 0} si cada append se escribe de
+     * inmediato
+     */
+    public int getAppendBatchSize() {
+        return this.appendBatchSize;
+    }
+
+    /**
+     * Cambia la cantidad de caracteres que se acumulan antes de escribir los
+     * textos añadidos con append(). Con un lote mayor que cero, muchos append
+     * pequeños se escriben en el archivo con una sola escritura.
+     * <p>
+     * Los textos acumulados se escriben al llenarse el lote, al llamar a
+     * flushAppends() o antes de cualquier otra lectura o escritura hecha por
+     * este objeto
+     * </p>
+     *
+     * @param appendBatchSize El tamaño del lote en caracteres o {@code 0}
+     * para escribir cada append de inmediato
+     */
+    public void setAppendBatchSize(int appendBatchSize) {
+        this.appendBatchSize = Math.max(appendBatchSize, 0);
+        if (this.pendingAppends.length() >= this.appendBatchSize) {
+            this.flushAppends();
+        }
+    }
+
+    /**
+     * Añade texto al final del archivo sin reescribir su contenido. No
+     * modifica el contenido de la capsula. Si no se puede escribir, el texto
+     * queda pendiente hasta el siguiente flushAppends()
+     *
+     * @param txt El texto a añadir
+     * @throws FileTypeException Si el archivo usa una compresión que no
+     * permite añadir contenido
+     * @throws IllegalArgumentException Si la codificación del archivo no
+     * puede representar alguno de los caracteres del texto
+     */
+    public void append(CharSequence txt) {
+        TextLoader.requireAppendable(this.baseFile);
+        if (!this.getCharset().newEncoder().canEncode(txt)) {
+            throw new IllegalArgumentException("El texto tiene caracteres "
+                    + "que no se pueden escribir con la codificación "
+                    + this.getCharset().name());
+        }
+        this.pendingAppends.append(txt);
+        if (this.pendingAppends.length() >= this.appendBatchSize) {
+            this.flushAppends();
+        }
+    }
+
+    /**
+     * Escribe en el archivo los textos acumulados por append() que aún no se
+     * han escrito. Si no se pueden escribir se conservan para el siguiente
+     * intento
+     *
+     * @return Si no queda ningún texto pendiente
+     */
+    public boolean flushAppends() {
+        if (this.pendingAppends.length() == 0) {
+            return true;
+        }
+        this.mappedText = null;
+        if (!TextLoader.append(this.baseFile, this.pendingAppends,
+                this.getCharset())) {
+            return false;
+        }
+        this.pendingAppends.setLength(0);
+        return true;
+    }
+
+    /**
+     * Escribe texto en una posición del archivo sobrescribiendo solo los
+     * bytes que ocupa, sin reescribir el resto del archivo. No modifica el
+     * contenido de la capsula
+     *
+     * @param position La posición en bytes donde empezar a escribir
+     * @param txt El texto a escribir
+     */
+    public void writeAt(long position, CharSequence txt) {
+        this.flushAppends();
+        this.mappedText = null;
+        if (this.lineIndex != null
+                && position < this.lineIndex.getIndexedLength()) {
+            this.lineIndex.invalidate();
+        }
+        TextLoader.writeAt(this.baseFile, position, txt, this.getCharset());
+    }
+
+    /**
+     * Empieza a seguir el archivo, como {@code tail -f}. Cada cierto tiempo
+     * se comprueba si el archivo creció y solo se leen los bytes nuevos; las
+     * lineas completas que aparezcan se publican en la capsula del
+     * TextFollower devuelto. Las lineas que ya estaban en el archivo se
+     * ignoran
+     *
+     * @param interval El tiempo entre cada comprobación
+     * @param unit La unidad de tiempo del intervalo
+     * @return El objeto que sigue el archivo. Debe cerrarse para dejar de
+     * seguirlo
+     */
+    public TextFollower follow(long interval, TimeUnit unit) {
+        this.flushAppends();
+        TextFollower follower = new TextFollower(this, true);
+        follower.start(interval, unit);
+        return follower;
+    }
+
     @Override
     public BaseFile getBaseFile() {
         return this.baseFile;
@@ -45,12 +414,31 @@ public class TextFile implements ReadableFile<String> {
 
     @Override
     public String fileRead() {
-        return TextLoader.read(this.baseFile);
+        this.flushAppends();
+        return TextLoader.read(this.baseFile, this.getCharset());
     }
 
     @Override
     public void fileWrite(String content) {
-        TextLoader.write(this.baseFile, content);
+        this.tryFileWrite(content);
+    }
+
+    @Override
+    public boolean tryFileWrite(String content) {
+        this.flushAppends();
+        this.mappedText = null;
+        if (this.lineIndex != null) {
+            this.lineIndex.invalidate();
+        }
+        Charset target = this.getCharset();
+        if (this.charsetDetected) {
+            target = TextLoader.writableCharset(target, content);
+        }
+        if (!TextLoader.tryWrite(this.baseFile, content, target)) {
+            return false;
+        }
+        this.charset = target;
+        return true;
     }
 
 }
@@ -0,0 +1,270 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.text;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import codes.angeljsb.capsulator.util.Capsule;
+
+/**
+ * Sigue un archivo de texto que va creciendo, como {@code tail -f}.
+ * <p>
+ * Recuerda la posición del último byte leído y en cada comprobación solo lee
+ * los bytes añadidos desde entonces, por lo que el costo de cada
+ * actualización depende únicamente de los datos nuevos. Si el archivo se
+ * trunca o se sustituye por otro (rotación de logs), se vuelve a leer desde
+ * el principio. Para reconocer la sustitución se comparan el identificador
+ * del archivo en el sistema y sus primeros bytes.
+ * </p>
+ * Cada grupo de lineas completas nuevas se publica en la capsula de este
+ * objeto, cuyos agentes de escucha reciben solo esas lineas. Una linea sin
+ * salto de linea al final se guarda hasta que se complete
+ *
+ * @author Angel
+ */
+public class TextFollower implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * La cantidad de bytes del principio del archivo que se comparan para
+     * detectar que el archivo fue sustituido por otro
+     */
+    private static final int HEAD_SIZE = 64;
+
+    private final TextFile textFile;
+    private final Capsule<List<String>> capsule = new Capsule<>();
+    private final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    private long offset;
+    private Object fileKey = null;
+    private byte[] head = new byte[0];
+    private ScheduledExecutorService executor = null;
+
+    /**
+     * Crea un objeto para seguir un archivo de texto. La codificación del
+     * archivo debe usar el byte {@code 0x0A} como salto de linea y el archivo
+     * no puede estar comprimido
+     *
+     * @param textFile El archivo a seguir
+     * @param fromEnd Si se ignora el contenido actual del archivo y solo se
+     * leen las lineas que se añadan después
+     */
+    public TextFollower(TextFile textFile, boolean fromEnd) {
+        textFile.requireByteNewLine();
+        TextLoader.requireUncompressed(textFile.getBaseFile());
+        this.textFile = textFile;
+        this.offset = fromEnd ? textFile.getBaseFile().length() : 0;
+        this.fileKey = this.readFileKey();
+        this.head = this.readHead(textFile.getBaseFile().toPath(),
+                (int) Math.min(this.offset, HEAD_SIZE));
+    }
+
+    /**
+     * Devuelve la capsula donde se publican las lineas nuevas. Su contenido
+     * es siempre el último grupo de lineas leído
+     *
+     * @return La capsula
+     */
+    public Capsule<List<String>> getCapsule() {
+        return this.capsule;
+    }
+
+    /**
+     * Devuelve la posición en bytes hasta la que se ha leído el archivo
+     *
+     * @return La posición del siguiente byte a leer
+     */
+    public synchronized long getOffset() {
+        return this.offset;
+    }
+
+    /**
+     * Empieza a comprobar el archivo periódicamente en un hilo en segundo
+     * plano
+     *
+     * @param interval El tiempo entre cada comprobación
+     * @param unit La unidad de tiempo del intervalo
+     */
+    public synchronized void start(long interval, TimeUnit unit) {
+        if (this.executor != null) {
+            return;
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "capsulator-follow-"
+                    + this.textFile.getBaseFile().getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::pollInBackground, 0,
+                interval, unit);
+    }
+
+    /**
+     * Comprobación periódica del hilo en segundo plano. Los errores lanzados
+     * por los efectos secundarios de la capsula se imprimen en lugar de
+     * lanzarse, porque el planificador cancelaría las comprobaciones
+     * siguientes
+     */
+    private void pollInBackground() {
+        try {
+            this.poll();
+        } catch (RuntimeException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Comprueba si el archivo tiene datos nuevos y los lee. Si hay lineas
+     * completas nuevas se publican en la capsula
+     *
+     * @return Las lineas completas nuevas, que puede estar vacía
+     */
+    public synchronized List<String> poll() {
+        List<String> lines = new ArrayList<>();
+        Path path = this.textFile.getBaseFile().toPath();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path,
+                    BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            return lines;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return lines;
+        }
+        Object key = attributes.fileKey();
+        boolean rotated = key != null && this.fileKey != null
+                && !key.equals(this.fileKey);
+        if (!rotated && this.head.length > 0
+                && attributes.size() >= this.offset) {
+            byte[] current = this.readHead(path, this.head.length);
+            rotated = !Arrays.equals(current, this.head);
+        }
+        if (rotated || attributes.size() < this.offset) {
+            this.offset = 0;
+            this.partial.reset();
+            this.head = new byte[0];
+        }
+        this.fileKey = key;
+        if (attributes.size() > this.offset) {
+            try {
+                this.readNewBytes(path, lines);
+            } catch (IOException ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+        if (this.head.length < HEAD_SIZE && this.offset > this.head.length) {
+            this.head = this.readHead(path,
+                    (int) Math.min(this.offset, HEAD_SIZE));
+        }
+        if (!lines.isEmpty()) {
+            this.capsule.pushContent(lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Lee desde la última posición hasta el final del archivo y separa las
+     * lineas completas
+     */
+    private void readNewBytes(Path path, List<String> lines)
+            throws IOException {
+        Charset charset = this.textFile.getCharset();
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            byte[] array = buffer.array();
+            while (true) {
+                buffer.clear();
+                int count = channel.read(buffer, this.offset);
+                if (count <= 0) {
+                    break;
+                }
+                int start = 0;
+                for (int i = 0; i < count; i++) {
+                    if (array[i] == '\n') {
+                        this.partial.write(array, start, i - start);
+                        lines.add(this.takeLine(charset));
+                        start = i + 1;
+                    }
+                }
+                this.partial.write(array, start, count - start);
+                this.offset += count;
+            }
+        }
+    }
+
+    /**
+     * Decodifica la linea acumulada, quitando el retorno de carro final
+     */
+    private String takeLine(Charset charset) {
+        byte[] bytes = this.partial.toByteArray();
+        this.partial.reset();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, charset);
+    }
+
+    /**
+     * Lee los primeros bytes del archivo para poder reconocerlo después
+     */
+    private byte[] readHead(Path path, int length) {
+        if (length <= 0) {
+            return new byte[0];
+        }
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, buffer.position()) <= 0) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        } catch (IOException ex) {
+            return new byte[0];
+        }
+    }
+
+    private Object readFileKey() {
+        try {
+            return Files.readAttributes(
+                    this.textFile.getBaseFile().toPath(),
+                    BasicFileAttributes.class).fileKey();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Deja de seguir el archivo
+     */
+    @Override
+    public synchronized void close() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+}
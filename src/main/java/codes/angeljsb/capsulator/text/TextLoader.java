@@ -7,8 +7,32 @@ package codes.angeljsb.capsulator.text;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import codes.angeljsb.capsulator.BaseFile;
+import codes.angeljsb.capsulator.Compression;
+import codes.angeljsb.capsulator.FileTypeException;
 
 /**
  * Clase con funciones estaticas para manejar archivos de texto
@@ -18,20 +42,417 @@ import codes.angeljsb.capsulator.BaseFile;
 public class TextLoader {
 
     /**
-     * Lee todo el texto en un archivo
+     * El tamaño de los bloques de caracteres que se leen de una vez
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * El tamaño máximo que puede tener un arreglo en la mayoría de máquinas
+     * virtuales
+     */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    /**
+     * Calcula cuántos caracteres se espera que tenga un archivo a partir de
+     * su tamaño en bytes y de la codificación
+     *
+     * @param file El archivo
+     * @param charset La codificación del archivo
+     * @return La cantidad estimada de caracteres del archivo
+     */
+    private static int estimateLength(BaseFile file, Charset charset) {
+        double chars = file.length()
+                * (double) charset.newDecoder().averageCharsPerByte();
+        return (int) Math.min(chars, MAX_CAPACITY);
+    }
+
+    /**
+     * Comprueba que el archivo no tenga compresión transparente activa. Las
+     * operaciones que acceden a posiciones concretas de bytes no tienen
+     * sentido sobre un archivo comprimido
+     *
+     * @param file El archivo
+     * @throws FileTypeException Si el archivo se lee comprimido
+     */
+    static void requireUncompressed(BaseFile file) {
+        if (file.isCompressed()) {
+            throw new FileTypeException("La operación no está disponible "
+                    + "para archivos comprimidos");
+        }
+    }
+
+    /**
+     * Lee todo el texto en un archivo adivinando su codificación con
+     * CharsetDetector
      *
      * @param file El archivo a leer
      * @return El texto en el archivo
      */
     public static String read(BaseFile file) {
-        try (BufferedReader reader = file.getReader()) {
-            String total = "";
+        return read(file, CharsetDetector.detect(file));
+    }
+
+    /**
+     * Lee todo el texto en un archivo. El texto se lee por bloques en un
+     * buffer reservado a partir del tamaño del archivo, por lo que el tiempo
+     * de lectura es lineal, y se conservan los saltos de linea tal y como
+     * están en el archivo
+     *
+     * @param file El archivo a leer
+     * @param charset La codificación del texto en el archivo
+     * @return El texto en el archivo o null si no se pudo leer
+     */
+    public static String read(BaseFile file, Charset charset) {
+        StringBuilder builder = new StringBuilder(
+                estimateLength(file, charset));
+        if (read(file, charset, builder) < 0) {
+            return null;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Lee todo el texto en un archivo y lo añade al final de un
+     * StringBuilder. Permite reutilizar el mismo buffer en varias lecturas.
+     * <p>
+     * Con ISO-8859-1 y ASCII cada byte se convierte directamente en un
+     * caracter, sin pasar por un decodificador. Con UTF-8 los tramos de bytes
+     * ASCII se convierten del mismo modo y solo el resto se decodifica
+     * </p>
+     *
+     * @param file El archivo a leer
+     * @param charset La codificación del texto en el archivo
+     * @param out El builder al que se añadirá el texto
+     * @return La cantidad de caracteres leídos o {@code -1} si no se pudo leer
+     * el archivo
+     */
+    public static long read(BaseFile file, Charset charset,
+            StringBuilder out) {
+        if (MappedText.isSingleByte(charset)
+                || charset.equals(StandardCharsets.UTF_8)) {
+            return readFast(file, charset, out);
+        }
+        try (BufferedReader reader = file.getReader(charset)) {
+            if (reader == null) {
+                return -1;
+            }
+            out.ensureCapacity(
+                    (int) Math.min((long) out.length()
+                            + estimateLength(file, charset), MAX_CAPACITY));
+            char[] chunk = new char[CHUNK_SIZE];
+            long total = 0;
+            int count = reader.read(chunk);
+            while (count != -1) {
+                out.append(chunk, 0, count);
+                total += count;
+                count = reader.read(chunk);
+            }
+            return total;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return -1;
+        }
+    }
+
+    /**
+     * Lee un archivo en ISO-8859-1, ASCII o UTF-8 convirtiendo directamente
+     * los bytes ASCII en caracteres
+     */
+    private static long readFast(BaseFile file, Charset charset,
+            StringBuilder out) {
+        try (InputStream in = file.getInputStream()) {
+            if (in == null) {
+                return -1;
+            }
+            out.ensureCapacity(
+                    (int) Math.min((long) out.length()
+                            + estimateLength(file, charset), MAX_CAPACITY));
+            boolean ascii = charset.equals(StandardCharsets.US_ASCII);
+            CharsetDecoder decoder = MappedText.isSingleByte(charset)
+                    ? null
+                    : charset.newDecoder()
+                            .onMalformedInput(CodingErrorAction.REPLACE)
+                            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer bytes = ByteBuffer.allocate(CHUNK_SIZE);
+            CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+            byte[] input = bytes.array();
+            char[] output = chars.array();
+            long total = 0;
+            boolean eof = false;
+            while (!eof) {
+                int count = in.read(input, bytes.position(),
+                        bytes.remaining());
+                if (count == -1) {
+                    eof = true;
+                } else {
+                    bytes.position(bytes.position() + count);
+                }
+                bytes.flip();
+                int start = bytes.position();
+                int end = bytes.limit();
+                if (decoder != null) {
+                    end = start;
+                    while (end < bytes.limit() && input[end] >= 0) {
+                        end++;
+                    }
+                }
+                for (int i = start; i < end; i++) {
+                    int value = input[i] & 0xFF;
+                    output[i - start] = ascii && value > 0x7F
+                            ? '\uFFFD'
+                            : (char) value;
+                }
+                out.append(output, 0, end - start);
+                total += end - start;
+                bytes.position(end);
+                if (decoder != null && (bytes.hasRemaining() || eof)) {
+                    total += decode(decoder, bytes, chars, eof, out);
+                }
+                bytes.compact();
+            }
+            return total;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return -1;
+        }
+    }
+
+    /**
+     * Decodifica todos los bytes disponibles y añade los caracteres al
+     * builder. Los bytes de una secuencia incompleta quedan en el buffer
+     * hasta la siguiente llamada
+     */
+    private static long decode(CharsetDecoder decoder, ByteBuffer bytes,
+            CharBuffer chars, boolean eof, StringBuilder out) {
+        long total = 0;
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chars, eof);
+            total += chars.position();
+            out.append(chars.array(), 0, chars.position());
+            chars.clear();
+        } while (result.isOverflow());
+        if (eof) {
+            do {
+                result = decoder.flush(chars);
+                total += chars.position();
+                out.append(chars.array(), 0, chars.position());
+                chars.clear();
+            } while (result.isOverflow());
+        }
+        return total;
+    }
+
+    /**
+     * Lee el texto de un archivo en un CharBuffer a partir de su posición
+     * actual. La lectura termina al llegar al final del archivo o al llenarse
+     * el buffer, lo que ocurra primero
+     *
+     * @param file El archivo a leer
+     * @param charset La codificación del texto en el archivo
+     * @param out El buffer en el que se escribirá el texto
+     * @return La cantidad de caracteres leídos o {@code -1} si no se pudo leer
+     * el archivo
+     */
+    public static int read(BaseFile file, Charset charset, CharBuffer out) {
+        try (BufferedReader reader = file.getReader(charset)) {
+            if (reader == null) {
+                return -1;
+            }
+            int total = 0;
+            while (out.hasRemaining()) {
+                int count = reader.read(out);
+                if (count == -1) {
+                    break;
+                }
+                total += count;
+            }
+            return total;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return -1;
+        }
+    }
+
+    /**
+     * Devuelve un stream con las lineas de un archivo, sin sus saltos de
+     * linea. Las lineas se leen a medida que se consumen, por lo que la
+     * memoria usada no depende del tamaño del archivo.
+     * <p>
+     * El archivo se cierra al terminar de recorrer el stream o al cerrarlo,
+     * así que si el stream no se consume por completo debe usarse dentro de
+     * un try-with-resources. Los errores de lectura durante el recorrido se
+     * lanzan como UncheckedIOException
+     * </p>
+     *
+     * @param file El archivo a leer
+     * @param charset La codificación del texto en el archivo
+     * @param bufferSize El tamaño del buffer de lectura en caracteres
+     * @return Las lineas del archivo o null si el archivo no se puede leer
+     */
+    public static Stream<String> lines(BaseFile file, Charset charset,
+            int bufferSize) {
+        final BufferedReader reader;
+        try {
+            reader = file.getReader(charset, bufferSize);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return null;
+        }
+        if (reader == null) {
+            return null;
+        }
+        Iterator<String> iterator = new LineIterator(reader);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> close(reader));
+    }
+
+    /**
+     * Ejecuta una acción por cada linea de un archivo, leyendo las lineas a
+     * medida que se procesan
+     *
+     * @param file El archivo a leer
+     * @param charset La codificación del texto en el archivo
+     * @param bufferSize El tamaño del buffer de lectura en caracteres
+     * @param action La acción a ejecutar con cada linea
+     * @return La cantidad de lineas procesadas o {@code -1} si no se pudo leer
+     * el archivo
+     */
+    public static long forEachLine(BaseFile file, Charset charset,
+            int bufferSize, Consumer<String> action) {
+        try (BufferedReader reader = file.getReader(charset, bufferSize)) {
+            if (reader == null) {
+                return -1;
+            }
+            long total = 0;
             String line = reader.readLine();
             while (line != null) {
-                total += line;
+                action.accept(line);
+                total++;
                 line = reader.readLine();
             }
             return total;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return -1;
+        }
+    }
+
+    private static void close(BufferedReader reader) {
+        try {
+            reader.close();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Iterador sobre las lineas de un reader que lo cierra al llegar al final
+     */
+    private static class LineIterator implements Iterator<String> {
+
+        private final BufferedReader reader;
+        private String next = null;
+        private boolean finished = false;
+
+        LineIterator(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.next != null) {
+                return true;
+            }
+            if (this.finished) {
+                return false;
+            }
+            try {
+                this.next = this.reader.readLine();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            if (this.next == null) {
+                this.finished = true;
+                close(this.reader);
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public String next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String line = this.next;
+            this.next = null;
+            return line;
+        }
+
+    }
+
+    /**
+     * Mapea el contenido de un archivo en memoria y lo devuelve como una
+     * secuencia de caracteres que se decodifica de forma perezosa. El texto
+     * queda fuera del heap y no se decodifica nada hasta que se usa.
+     * <p>
+     * El mapeo sigue siendo válido aunque el archivo se cierre, pero no debe
+     * usarse después de que el archivo sea truncado.
+     * </p>
+     *
+     * @param file El archivo a mapear
+     * @param charset La codificación del texto en el archivo
+     * @return El texto del archivo o null si no se pudo leer
+     * @throws FileTypeException Si el archivo es demasiado grande para ser
+     * mapeado o está comprimido
+     */
+    public static MappedText map(BaseFile file, Charset charset) {
+        requireUncompressed(file);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new FileTypeException("Solo se pueden mapear archivos "
+                        + "de menos de 2GB");
+            }
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, size);
+            return new MappedText(buffer, charset);
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    /**
+     * Lee una región de bytes de un archivo sin recorrer los bytes
+     * anteriores, usando una lectura posicional
+     *
+     * @param file El archivo a leer
+     * @param position La posición del primer byte a leer
+     * @param length La cantidad de bytes a leer
+     * @return Los bytes leídos, que pueden ser menos de los pedidos si el
+     * archivo termina antes, o null si no se pudo leer el archivo
+     * @throws FileTypeException Si el archivo está comprimido
+     */
+    public static byte[] readBytes(BaseFile file, long position, int length) {
+        requireUncompressed(file);
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, position + buffer.position());
+                if (count == -1) {
+                    break;
+                }
+            }
+            if (buffer.hasRemaining()) {
+                byte[] read = new byte[buffer.position()];
+                System.arraycopy(buffer.array(), 0, read, 0, read.length);
+                return read;
+            }
+            return buffer.array();
         } catch (IOException ex) {
             ex.printStackTrace(System.err);
             return null;
@@ -39,17 +460,195 @@ public class TextLoader {
     }
 
     /**
-     * Escribe un string en un archivo
+     * Añade texto al final de un archivo sin reescribir su contenido. Si el
+     * archivo no existe se crea. En un archivo gzip con compresión
+     * transparente el texto se añade como un bloque comprimido nuevo
+     *
+     * @param file El archivo a escribir
+     * @param txt El texto a añadir
+     * @param charset La codificación con la que se escribirá el texto
+     * @return Si se pudo añadir el texto. Si la codificación no puede
+     * representar alguno de sus caracteres no se añade nada
+     * @throws FileTypeException Si el archivo usa una compresión que no
+     * permite añadir contenido
+     */
+    public static boolean append(BaseFile file, CharSequence txt,
+            Charset charset) {
+        ByteBuffer bytes = encode(txt, charset);
+        if (bytes == null) {
+            return false;
+        }
+        if (file.isCompressed()) {
+            return appendCompressed(file, bytes);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND,
+                StandardOpenOption.CREATE)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+        return false;
+    }
+
+    /**
+     * Comprueba que se pueda añadir contenido al final del archivo sin
+     * reescribirlo
+     *
+     * @param file El archivo
+     * @throws FileTypeException Si el archivo usa una compresión que no lo
+     * permite
+     */
+    static void requireAppendable(BaseFile file) {
+        Compression compression = file.getCompression();
+        if (!compression.isAppendable()) {
+            throw new FileTypeException("No se puede añadir contenido a un "
+                    + "archivo " + compression.name());
+        }
+    }
+
+    private static boolean appendCompressed(BaseFile file,
+            ByteBuffer bytes) {
+        requireAppendable(file);
+        Compression compression = file.getCompression();
+        try (OutputStream out = compression.wrap(
+                new FileOutputStream(file, true))) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                    bytes.remaining());
+            return true;
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+        return false;
+    }
+
+    /**
+     * Escribe texto en una posición concreta de un archivo, sobrescribiendo
+     * los bytes que ya estuvieran ahí y sin tocar el resto del archivo. Si el
+     * texto pasa del final del archivo, el archivo crece. Si la codificación
+     * no puede representar alguno de sus caracteres no se escribe nada
+     *
+     * @param file El archivo a escribir
+     * @param position La posición en bytes donde empezar a escribir
+     * @param txt El texto a escribir
+     * @param charset La codificación con la que se escribirá el texto
+     * @throws FileTypeException Si el archivo está comprimido
+     */
+    public static void writeAt(BaseFile file, long position, CharSequence txt,
+            Charset charset) {
+        requireUncompressed(file);
+        ByteBuffer bytes = encode(txt, charset);
+        if (bytes == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.WRITE)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes, position + bytes.position());
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Codifica un texto sin sustituir los caracteres que la codificación no
+     * puede representar. Si hay alguno se imprime el error en la salida
+     * normal de errores
+     *
+     * @param txt El texto a codificar
+     * @param charset La codificación
+     * @return Los bytes del texto o null si no se pudo codificar
+     */
+    private static ByteBuffer encode(CharSequence txt, Charset charset) {
+        try {
+            return charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .encode(CharBuffer.wrap(txt));
+        } catch (CharacterCodingException ex) {
+            printUnencodable(charset);
+            return null;
+        }
+    }
+
+    private static void printUnencodable(Charset charset) {
+        System.err.println("El texto tiene caracteres que no se pueden "
+                + "escribir con la codificación " + charset.name());
+    }
+
+    /**
+     * Escribe un string en un archivo. Si el archivo tiene contenido se
+     * mantiene la codificación que detecte CharsetDetector; si no, se usa la
+     * codificación por defecto de la plataforma. Si esa codificación no puede
+     * representar todos los caracteres del texto se escribe en UTF-8
      *
      * @param file El archivo a escribir
      * @param txt El texto a escribir en el archivo
      */
     public static void write(BaseFile file, String txt) {
-        try (BufferedWriter writer = file.getWriter()) {
+        write(file, txt, writableCharset(file.length() > 0
+                ? CharsetDetector.detect(file)
+                : Charset.defaultCharset(), txt));
+    }
+
+    /**
+     * Escribe un string en un archivo. Si la codificación no puede
+     * representar todos los caracteres del texto no se escribe nada y se
+     * imprime el error en la salida normal de errores
+     *
+     * @param file El archivo a escribir
+     * @param txt El texto a escribir en el archivo
+     * @param charset La codificación con la que se escribirá el texto
+     */
+    public static void write(BaseFile file, String txt, Charset charset) {
+        tryWrite(file, txt, charset);
+    }
+
+    /**
+     * Devuelve la codificación con la que se debe escribir un texto: la
+     * preferida si puede representar todos sus caracteres, o UTF-8 si no
+     *
+     * @param preferred La codificación preferida, normalmente la del archivo
+     * @param txt El texto a escribir
+     * @return La codificación a usar
+     */
+    static Charset writableCharset(Charset preferred, CharSequence txt) {
+        if (preferred.canEncode() && preferred.newEncoder().canEncode(txt)) {
+            return preferred;
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Escribe un string en un archivo e informa si se pudo. Antes de abrir el
+     * archivo se comprueba que la codificación pueda representar todos los
+     * caracteres, así nunca se sustituyen caracteres por '?' ni se deja el
+     * archivo a medio escribir
+     *
+     * @param file El archivo a escribir
+     * @param txt El texto a escribir en el archivo
+     * @param charset La codificación con la que se escribirá el texto
+     * @return Si se pudo escribir el archivo
+     */
+    static boolean tryWrite(BaseFile file, String txt, Charset charset) {
+        if (!charset.newEncoder().canEncode(txt)) {
+            printUnencodable(charset);
+            return false;
+        }
+        try (BufferedWriter writer = file.getWriter(charset)) {
+            if (writer == null) {
+                return false;
+            }
             writer.write(txt);
+            return true;
         } catch (IOException ex) {
             ex.printStackTrace(System.err);
         }
+        return false;
     }
 
 }
@@ -0,0 +1,528 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.text;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import codes.angeljsb.capsulator.BaseFile;
+import codes.angeljsb.capsulator.Directory;
+
+/**
+ * Clase con funciones estaticas para buscar texto en todos los archivos de un
+ * árbol de directorios.
+ * <p>
+ * Los archivos se recorren en paralelo en un ForkJoinPool y las coincidencias
+ * se devuelven en un stream a medida que se encuentran, por lo que el orden
+ * entre archivos distintos no está definido. Dentro de un mismo archivo las
+ * coincidencias llegan en orden.
+ * </p>
+ * Los textos literales se buscan con el algoritmo de Boyer-Moore-Horspool,
+ * los archivos grandes se leen mapeándolos en memoria y los archivos
+ * comprimidos se descomprimen al leerlos
+ *
+ * @author Angel
+ */
+public class TextSearch {
+
+    /**
+     * El tamaño a partir del cual los archivos se mapean en memoria en lugar
+     * de leerse completos
+     */
+    public static final long MAP_THRESHOLD = 1024 * 1024;
+
+    private static final int QUEUE_SIZE = 1024;
+
+    private static final SearchMatch END = new SearchMatch(null, -1, -1, -1,
+            null, null);
+
+    /**
+     * Busca un texto literal en todos los archivos de un directorio y sus
+     * subdirectorios
+     *
+     * @param directory El directorio raíz de la búsqueda
+     * @param literal El texto a buscar
+     * @param maxHits La cantidad máxima de coincidencias a devolver o un
+     * número negativo para devolverlas todas
+     * @param formats Los formatos de los archivos en los que buscar
+     * @return Las coincidencias encontradas. El stream debe cerrarse si no se
+     * consume por completo
+     */
+    public static Stream<SearchMatch> search(Directory directory,
+            String literal, int maxHits, String... formats) {
+        if (literal.isEmpty()) {
+            throw new IllegalArgumentException("El texto a buscar no puede "
+                    + "estar vacío");
+        }
+        return search(directory, new LiteralFinder(literal), maxHits,
+                formats);
+    }
+
+    /**
+     * Busca una expresión regular en todos los archivos de un directorio y
+     * sus subdirectorios
+     *
+     * @param directory El directorio raíz de la búsqueda
+     * @param regex La expresión regular a buscar
+     * @param maxHits La cantidad máxima de coincidencias a devolver o un
+     * número negativo para devolverlas todas
+     * @param formats Los formatos de los archivos en los que buscar
+     * @return Las coincidencias encontradas. El stream debe cerrarse si no se
+     * consume por completo
+     */
+    public static Stream<SearchMatch> search(Directory directory,
+            Pattern regex, int maxHits, String... formats) {
+        return search(directory, new RegexFinder(regex), maxHits, formats);
+    }
+
+    private static Stream<SearchMatch> search(Directory directory,
+            Finder finder, int maxHits, String... formats) {
+        Search search = new Search(finder, maxHits, formats);
+        search.pool.execute(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                try {
+                    new DirectoryTask(search, directory).invoke();
+                } finally {
+                    search.finish();
+                }
+            }
+        });
+        Iterator<SearchMatch> iterator = new ResultIterator(search);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+                iterator, Spliterator.NONNULL), false)
+                .onClose(search::cancel);
+    }
+
+    /**
+     * Busca la primera coincidencia de un texto literal en una secuencia de
+     * caracteres usando el algoritmo de Boyer-Moore-Horspool
+     *
+     * @param text El texto donde buscar
+     * @param literal El texto a buscar
+     * @param from La posición desde la que empezar a buscar
+     * @return La posición de la primera coincidencia desde {@code from} o
+     * {@code -1} si no hay
+     */
+    public static int indexOf(CharSequence text, String literal, int from) {
+        return new LiteralFinder(literal).indexOf(text, from);
+    }
+
+    /**
+     * Estado compartido de una búsqueda en curso
+     */
+    private static class Search {
+
+        private final Finder finder;
+        private final int maxHits;
+        private final String[] formats;
+        private final ForkJoinPool pool = new ForkJoinPool();
+        private final BlockingQueue<SearchMatch> results
+                = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final AtomicInteger hits = new AtomicInteger();
+        private final AtomicBoolean stopped = new AtomicBoolean();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        Search(Finder finder, int maxHits, String[] formats) {
+            this.finder = finder;
+            this.maxHits = maxHits;
+            this.formats = formats.length == 0 ? new String[]{"*"} : formats;
+        }
+
+        /**
+         * Determina si ya no hay que buscar más, porque se llegó al máximo de
+         * coincidencias o porque se cerró el stream
+         */
+        boolean isStopped() {
+            return this.stopped.get();
+        }
+
+        /**
+         * Publica una coincidencia
+         *
+         * @return Si la búsqueda debe continuar
+         */
+        boolean publish(SearchMatch match) {
+            if (this.maxHits >= 0) {
+                int count = this.hits.incrementAndGet();
+                if (count >= this.maxHits) {
+                    this.stopped.set(true);
+                }
+                if (count > this.maxHits) {
+                    return false;
+                }
+            }
+            try {
+                while (!this.cancelled.get()) {
+                    if (this.results.offer(match, 100,
+                            TimeUnit.MILLISECONDS)) {
+                        return !this.isStopped();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                this.cancel();
+            }
+            return false;
+        }
+
+        void finish() {
+            this.pool.shutdown();
+            try {
+                while (!this.results.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                    if (this.cancelled.get()) {
+                        this.results.clear();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void cancel() {
+            this.stopped.set(true);
+            this.cancelled.set(true);
+            this.results.clear();
+        }
+
+    }
+
+    /**
+     * Tarea que recorre un directorio y crea una tarea por cada archivo y
+     * subdirectorio
+     */
+    private static class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Search search;
+        private final Directory directory;
+
+        DirectoryTask(Search search, Directory directory) {
+            this.search = search;
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.search.isStopped() || this.directory.list() == null) {
+                return;
+            }
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for (Directory child : this.directory.listDirectories()) {
+                tasks.add(new DirectoryTask(this.search, child));
+            }
+            for (BaseFile file : this.directory.listBaseFiles(
+                    this.search.formats)) {
+                tasks.add(new FileTask(this.search, file));
+            }
+            invokeAll(tasks);
+        }
+
+    }
+
+    /**
+     * Tarea que busca todas las coincidencias en un archivo
+     */
+    private static class FileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Search search;
+        private final BaseFile file;
+
+        FileTask(Search search, BaseFile file) {
+            this.search = search;
+            this.file = file;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.search.isStopped()) {
+                return;
+            }
+            try {
+                this.searchFile();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace(System.err);
+            }
+        }
+
+        private void searchFile() {
+            this.file.setCompressionEnabled(true);
+            Charset charset = CharsetDetector.detect(this.file);
+            CharSequence text = !this.file.isCompressed()
+                    && this.file.length() >= MAP_THRESHOLD
+                    ? TextLoader.map(this.file, charset)
+                    : TextLoader.read(this.file, charset);
+            if (text == null) {
+                return;
+            }
+            LineTracker tracker = new LineTracker(text);
+            Cursor cursor = this.search.finder.cursor(text);
+            while (!this.search.isStopped() && cursor.next()) {
+                int start = cursor.start();
+                tracker.advanceTo(start);
+                SearchMatch match = new SearchMatch(this.file,
+                        tracker.line, start - tracker.lineStart, start,
+                        text.subSequence(start, cursor.end()).toString(),
+                        tracker.lineText());
+                if (!this.search.publish(match)) {
+                    break;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Lleva la cuenta de la linea en la que está una posición del texto,
+     * avanzando siempre hacia delante
+     */
+    private static class LineTracker {
+
+        private final CharSequence text;
+        private int position = 0;
+        private int line = 0;
+        private int lineStart = 0;
+
+        LineTracker(CharSequence text) {
+            this.text = text;
+        }
+
+        void advanceTo(int target) {
+            for (; this.position < target; this.position++) {
+                if (this.text.charAt(this.position) == '\n') {
+                    this.line++;
+                    this.lineStart = this.position + 1;
+                }
+            }
+        }
+
+        String lineText() {
+            int end = this.lineStart;
+            while (end < this.text.length() && this.text.charAt(end) != '\n') {
+                end++;
+            }
+            if (end > this.lineStart && this.text.charAt(end - 1) == '\r') {
+                end--;
+            }
+            return this.text.subSequence(this.lineStart, end).toString();
+        }
+
+    }
+
+    /**
+     * Iterador que consume las coincidencias publicadas por las tareas
+     */
+    private static class ResultIterator implements Iterator<SearchMatch> {
+
+        private final Search search;
+        private SearchMatch next = null;
+        private boolean finished = false;
+
+        ResultIterator(Search search) {
+            this.search = search;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.next != null) {
+                return true;
+            }
+            if (this.finished) {
+                return false;
+            }
+            try {
+                SearchMatch taken = this.search.results.take();
+                if (taken == END) {
+                    this.finished = true;
+                    return false;
+                }
+                this.next = taken;
+                return true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                this.search.cancel();
+                this.finished = true;
+                return false;
+            }
+        }
+
+        @Override
+        public SearchMatch next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SearchMatch match = this.next;
+            this.next = null;
+            return match;
+        }
+
+    }
+
+    /**
+     * Crea cursores que recorren las coincidencias de una búsqueda en un
+     * texto
+     */
+    private interface Finder {
+
+        /**
+         * Crea un cursor sobre las coincidencias en un texto. Cada hilo debe
+         * usar su propio cursor
+         *
+         * @param text El texto donde buscar
+         * @return El cursor, situado antes de la primera coincidencia
+         */
+        Cursor cursor(CharSequence text);
+
+    }
+
+    /**
+     * Recorre las coincidencias de una búsqueda en un texto
+     */
+    private interface Cursor {
+
+        /**
+         * Avanza a la siguiente coincidencia
+         *
+         * @return Si se encontró otra coincidencia
+         */
+        boolean next();
+
+        /**
+         * @return La posición donde empieza la coincidencia actual
+         */
+        int start();
+
+        /**
+         * @return La posición siguiente al final de la coincidencia actual
+         */
+        int end();
+
+    }
+
+    /**
+     * Busca un texto literal con el algoritmo de Boyer-Moore-Horspool
+     */
+    private static class LiteralFinder implements Finder {
+
+        private final String literal;
+        private final int[] shift = new int[256];
+
+        LiteralFinder(String literal) {
+            this.literal = literal;
+            int length = literal.length();
+            for (int i = 0; i < this.shift.length; i++) {
+                this.shift[i] = length;
+            }
+            for (int i = 0; i < length - 1; i++) {
+                this.shift[literal.charAt(i) & 0xFF] = length - 1 - i;
+            }
+        }
+
+        int indexOf(CharSequence text, int from) {
+            int length = this.literal.length();
+            int last = length - 1;
+            int limit = text.length() - length;
+            int position = Math.max(from, 0);
+            while (position <= limit) {
+                char tail = text.charAt(position + last);
+                if (tail == this.literal.charAt(last)) {
+                    int i = last - 1;
+                    while (i >= 0
+                            && text.charAt(position + i)
+                            == this.literal.charAt(i)) {
+                        i--;
+                    }
+                    if (i < 0) {
+                        return position;
+                    }
+                }
+                position += this.shift[tail & 0xFF];
+            }
+            return -1;
+        }
+
+        @Override
+        public Cursor cursor(CharSequence text) {
+            return new Cursor() {
+                private int start = -1;
+                private int from = 0;
+
+                @Override
+                public boolean next() {
+                    this.start = indexOf(text, this.from);
+                    if (this.start < 0) {
+                        return false;
+                    }
+                    this.from = this.end();
+                    return true;
+                }
+
+                @Override
+                public int start() {
+                    return this.start;
+                }
+
+                @Override
+                public int end() {
+                    return this.start + literal.length();
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Busca una expresión regular
+     */
+    private static class RegexFinder implements Finder {
+
+        private final Pattern pattern;
+
+        RegexFinder(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        public Cursor cursor(CharSequence text) {
+            Matcher matcher = this.pattern.matcher(text);
+            return new Cursor() {
+                @Override
+                public boolean next() {
+                    return matcher.find();
+                }
+
+                @Override
+                public int start() {
+                    return matcher.start();
+                }
+
+                @Override
+                public int end() {
+                    return matcher.end();
+                }
+            };
+        }
+
+    }
+
+}
@@ -7,6 +7,7 @@ package codes.angeljsb.capsulator.util;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Objects;
 import java.util.function.Consumer;
 
 /**
@@ -20,6 +21,7 @@ public class Capsule<T> {
 
     private T content = null;
     private ArrayList<Consumer<T>> changeListeners = new ArrayList();
+    private volatile boolean dirty = false;
 
     /**
      * Devuelve el contenido de la capsula
@@ -31,17 +33,82 @@ public class Capsule<T> {
     }
 
     /**
-     * Cambia el contenido de la capsula y activa los efectos secundarios
+     * Cambia el contenido de la capsula y activa los efectos secundarios.
+     * Si el nuevo contenido es distinto del anterior la capsula queda
+     * marcada como modificada; si es null deja de estarlo
      *
      * @param content El contenido a guardar
      */
     public void setContent(T content) {
         boolean dif = this.content != null && !this.content.equals(content);
+        boolean changed = !Objects.equals(this.content, content);
         this.content = content;
+        if (content == null) {
+            this.dirty = false;
+        } else if (changed) {
+            this.dirty = true;
+        }
         if (dif) {
             this.dispatchChange();
         }
     }
+
+    /**
+     * Cambia el contenido de la capsula y activa los efectos secundarios
+     * siempre, aunque el contenido nuevo sea igual al anterior o la capsula
+     * estuviera vacía. Sirve para publicar eventos en los que cada contenido
+     * es nuevo, como las lineas que se van añadiendo a un archivo
+     *
+     * @param content El contenido a guardar y publicar
+     */
+    public void pushContent(T content) {
+        this.content = content;
+        this.dispatchChange();
+    }
+
+    /**
+     * Cambia el contenido de la capsula por una versión editada, lo marca
+     * como modificado y activa los efectos secundarios siempre, aunque sea el
+     * mismo objeto modificado en su lugar
+     *
+     * @param content El contenido editado
+     */
+    public void editContent(T content) {
+        this.content = content;
+        if (content != null) {
+            this.dirty = true;
+        }
+        this.dispatchChange();
+    }
+
+    /**
+     * Determina si el contenido ha cambiado desde la última vez que se marcó
+     * como sincronizado con markClean()
+     *
+     * @return Si el contenido tiene cambios sin guardar
+     */
+    public boolean isDirty() {
+        return this.dirty;
+    }
+
+    /**
+     * Marca el contenido actual como sincronizado, es decir, igual al que
+     * hay guardado en el archivo
+     */
+    public void markClean() {
+        this.dirty = false;
+    }
+
+    /**
+     * Marca el contenido actual como modificado sin activar los efectos
+     * secundarios, por ejemplo cuando no se pudo guardar en el archivo. Si
+     * la capsula está vacía no hace nada
+     */
+    public void markDirty() {
+        if (this.content != null) {
+            this.dirty = true;
+        }
+    }
     
     /**
      * Añade un agente de escucha que será ejecutado al cambiar el 
@@ -0,0 +1,28 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package codes.angeljsb.capsulator.util;
+
+/**
+ * Representa una función que recibe un pixel de una imagen y devuelve su nuevo
+ * valor. Se ejecuta una vez por cada pixel, posiblemente desde varios hilos a
+ * la vez, por lo que no debe depender del orden de ejecución
+ *
+ * @author Angel
+ */
+@FunctionalInterface
+public interface PixelKernel {
+
+    /**
+     * Función que calcula el nuevo valor de un pixel
+     *
+     * @param x La columna del pixel
+     * @param y La fila del pixel
+     * @param argb El color actual del pixel en formato ARGB sin premultiplicar
+     * @return El nuevo color del pixel en formato ARGB sin premultiplicar
+     */
+    public int apply(int x, int y, int argb);
+
+}